@@ -0,0 +1,136 @@
+package ru.itis.sockets.app.bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+// Маленький замерщик без зависимостей: прогрев, несколько итераций фиксированной длины,
+// среднее время на операцию с разбросом и выделенная память на операцию по счётчику потока
+public class Bench {
+    private static final com.sun.management.ThreadMXBean THREADS = threadBean();
+
+    // Результаты складываются в статическое поле, чтобы JIT не выбросил вычисления
+    public static Object sink;
+
+    private final long warmupNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("bench.warmup", 1000));
+    private final long iterationNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("bench.time", 500));
+    private final int iterations = Integer.getInteger("bench.iterations", 5);
+    private final Pattern filter = Pattern.compile(System.getProperty("bench.filter", ".*"));
+    private final List<Result> results = new ArrayList<>();
+
+    public static void consume(Object value) {
+        sink = value;
+    }
+
+    public boolean accepts(String name) {
+        return filter.matcher(name).find();
+    }
+
+    public List<Result> getResults() {
+        return results;
+    }
+
+    public void run(String name, String payload, String charset, int chunk, Operation operation) throws Exception {
+        String id = name + "/" + payload + "/" + charset + (chunk > 0 ? "/chunk" + chunk : "");
+        if (!accepts(id)) return;
+
+        runFor(warmupNanos, operation);
+
+        double[] nanosPerOp = new double[iterations];
+        long totalOps = 0;
+        long totalBytes = 0;
+        for (int i = 0; i < iterations; i++) {
+            long bytesBefore = allocatedBytes();
+            long start = System.nanoTime();
+            long ops = runFor(iterationNanos, operation);
+            long elapsed = System.nanoTime() - start;
+            totalBytes += allocatedBytes() - bytesBefore;
+            totalOps += ops;
+            nanosPerOp[i] = (double) elapsed / ops;
+        }
+
+        double mean = 0;
+        for (double value : nanosPerOp) {
+            mean += value;
+        }
+        mean /= iterations;
+
+        double variance = 0;
+        for (double value : nanosPerOp) {
+            variance += (value - mean) * (value - mean);
+        }
+        double error = iterations > 1 ? Math.sqrt(variance / (iterations - 1)) : 0;
+        double bytesPerOp = THREADS != null ? (double) totalBytes / totalOps : Double.NaN;
+
+        Result result = new Result(name, payload, charset, chunk, mean, error, bytesPerOp, totalOps);
+        results.add(result);
+        System.out.println(result);
+    }
+
+    // Операция может обработать за вызов несколько сообщений (или ни одного при фрагментации),
+    // поэтому считаются сообщения, а не вызовы
+    private static long runFor(long nanos, Operation operation) throws Exception {
+        long deadline = System.nanoTime() + nanos;
+        long ops = 0;
+        do {
+            for (int i = 0; i < 64; i++) {
+                ops += operation.run();
+            }
+        } while (System.nanoTime() < deadline);
+        return Math.max(ops, 1);
+    }
+
+    private static long allocatedBytes() {
+        return THREADS != null ? THREADS.getCurrentThreadAllocatedBytes() : 0;
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean
+                && bean.isThreadAllocatedMemorySupported()) {
+            bean.setThreadAllocatedMemoryEnabled(true);
+            return bean;
+        }
+        return null;
+    }
+
+    public interface Operation {
+        // Сколько сообщений обработано за вызов
+        int run() throws Exception;
+    }
+
+    public static class Result {
+        final String benchmark;
+        final String payload;
+        final String charset;
+        final int chunk;
+        final double nanosPerOp;
+        final double error;
+        final double bytesPerOp;
+        final long ops;
+
+        Result(String benchmark, String payload, String charset, int chunk,
+               double nanosPerOp, double error, double bytesPerOp, long ops) {
+            this.benchmark = benchmark;
+            this.payload = payload;
+            this.charset = charset;
+            this.chunk = chunk;
+            this.nanosPerOp = nanosPerOp;
+            this.error = error;
+            this.bytesPerOp = bytesPerOp;
+            this.ops = ops;
+        }
+
+        double opsPerSecond() {
+            return 1e9 / nanosPerOp;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-28s %-6s %-9s %6s %12.1f +- %8.1f ns/op %12.0f ops/s %10.1f B/op",
+                    benchmark, payload, charset, chunk > 0 ? "c" + chunk : "-",
+                    nanosPerOp, error, opsPerSecond(), bytesPerOp);
+        }
+    }
+}
@@ -0,0 +1,726 @@
+package ru.itis.sockets.app.bench;
+
+import ru.itis.sockets.app.withSwing.ChatProtocol;
+import ru.itis.sockets.app.withSwing.ChatProtocolV2;
+import ru.itis.sockets.app.withSwing.ChatServerEngine;
+import ru.itis.sockets.app.withSwing.utils.FrameDecoder;
+import ru.itis.sockets.app.withSwing.utils.Histogram;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Нагрузка на NioChatServer без окон: тысячи ботов протокола v2 из одного процесса.
+// Бот проходит CONNECT_REQUEST/INIT_REQUEST, входит в комнаты и шлёт сообщения в общий чат,
+// в комнаты и другим ботам. В начале текста лежит момент отправки, поэтому получатель
+// считает задержку из конца в конец. Все боты в одной JVM и делят один System.nanoTime.
+//
+// Запуск: java [-Dload.*] ru.itis.sockets.app.bench.LoadGenerator [host] [port]
+public class LoadGenerator {
+    private enum Kind { GROUP, ROOM, PRIVATE }
+
+    private enum Handshake { CONNECTING, HELLO_SENT, INIT_SENT, READY, CLOSED }
+
+    private enum Action { CONNECT, JOIN, SEND }
+
+    private static final String ROOM_PREFIX = "load-";
+    private static final long JOIN_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int MAX_JOIN_ATTEMPTS = 50;
+    // Сколько ждать отстающих после окончания разгона
+    private static final long CONNECT_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final int OUTPUT_BUFFER_SIZE = 4096;
+
+    private final InetSocketAddress address;
+    private final int clients = Integer.getInteger("load.clients", 1000);
+    private final int threadCount = Integer.getInteger("load.threads", Runtime.getRuntime().availableProcessors());
+    private final long rampUpNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("load.rampUp", 10000));
+    private final long durationNanos = TimeUnit.SECONDS.toNanos(Long.getLong("load.duration", 30));
+    private final long drainNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("load.drain", 2000));
+    private final int rooms = Integer.getInteger("load.rooms", 20);
+    private final int roomsPerBot = Math.min(Integer.getInteger("load.roomsPerBot", 2), rooms);
+    // Сообщений в секунду на одного бота
+    private final double[] rates = {
+            Double.parseDouble(System.getProperty("load.groupRate", "0.02")),
+            Double.parseDouble(System.getProperty("load.roomRate", "0.2")),
+            Double.parseDouble(System.getProperty("load.privateRate", "0.1"))
+    };
+    private final boolean poisson = !"fixed".equalsIgnoreCase(System.getProperty("load.arrival", "poisson"));
+    private final SizeDistribution sizes = SizeDistribution.parse(System.getProperty("load.size", "uniform:32-200"));
+    private final String json = System.getProperty("load.json");
+
+    // Метка запуска отличает свои сообщения от истории комнат, оставшейся от прошлых прогонов
+    private final int runId = new Random().nextInt(Integer.MAX_VALUE);
+
+    // id ботов на сервере по их номерам — из них выбираются получатели личных сообщений
+    private final AtomicIntegerArray botIds = new AtomicIntegerArray(clients);
+    private final Map<String, Integer> roomIds = new ConcurrentHashMap<>();
+
+    private final LongAdder ready = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+
+    private volatile long measureStart;
+    private volatile long measureEnd;
+    private volatile boolean stopping;
+
+    public LoadGenerator(InetSocketAddress address) {
+        this.address = address;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Locale.setDefault(Locale.ROOT);
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : ChatServerEngine.DEFAULT_PORT;
+        new LoadGenerator(new InetSocketAddress(host, port)).run();
+    }
+
+    public void run() throws Exception {
+        System.out.printf("%d bots -> %s, %d threads, ramp-up %d ms, %d s, rates group/room/private %s per bot/s, size %s%n",
+                clients, address, threadCount, TimeUnit.NANOSECONDS.toMillis(rampUpNanos),
+                TimeUnit.NANOSECONDS.toSeconds(durationNanos), Arrays.toString(rates), sizes);
+
+        long start = System.nanoTime();
+        List<BotThread> botThreads = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < threadCount; i++) {
+            BotThread botThread = new BotThread(i, start);
+            Thread thread = new Thread(botThread, "load-" + i);
+            botThreads.add(botThread);
+            threads.add(thread);
+            thread.start();
+        }
+
+        // Разгон: ждём, пока все подключатся или получат отказ
+        long rampDeadline = start + rampUpNanos + CONNECT_TIMEOUT_NANOS;
+        while (ready.sum() + failed.sum() < clients && System.nanoTime() < rampDeadline) {
+            Thread.sleep(1000);
+            System.out.printf("ramp-up: %d ready, %d failed%n", ready.sum(), failed.sum());
+        }
+
+        measureEnd = System.nanoTime() + durationNanos;
+        measureStart = System.nanoTime();
+        long lastSent = sent.sum();
+        long lastReceived = received.sum();
+        while (System.nanoTime() < measureEnd) {
+            Thread.sleep(Math.min(1000, Math.max(1, TimeUnit.NANOSECONDS.toMillis(measureEnd - System.nanoTime()))));
+            long nowSent = sent.sum();
+            long nowReceived = received.sum();
+            System.out.printf("%d ready, sent %d/s, received %d/s%n",
+                    ready.sum(), nowSent - lastSent, nowReceived - lastReceived);
+            lastSent = nowSent;
+            lastReceived = nowReceived;
+        }
+
+        // Отправка закончена, ждём сообщения, которые ещё в пути
+        Thread.sleep(TimeUnit.NANOSECONDS.toMillis(drainNanos));
+        stopping = true;
+        for (int i = 0; i < threads.size(); i++) {
+            botThreads.get(i).selector.wakeup();
+            threads.get(i).join();
+        }
+
+        Stats total = new Stats();
+        for (BotThread botThread : botThreads) {
+            total.add(botThread.stats);
+        }
+        report(total);
+    }
+
+    private class BotThread implements Runnable {
+        private final Selector selector;
+        private final List<Bot> bots = new ArrayList<>();
+        private final PriorityQueue<Event> events = new PriorityQueue<>(Comparator.comparingLong(event -> event.time));
+        private final ChatProtocolV2.Messages messages = new ChatProtocolV2.Messages();
+        private final SplittableRandom random = new SplittableRandom();
+        private final Stats stats = new Stats();
+        private final String padding;
+        private boolean sending;
+
+        BotThread(int number, long start) throws IOException {
+            this.selector = Selector.open();
+            this.padding = "x".repeat(sizes.max());
+
+            // Подключения равномерно размазаны по времени разгона
+            for (int index = number; index < clients; index += threadCount) {
+                Bot bot = new Bot(this, index);
+                bots.add(bot);
+                events.add(new Event(bot, Action.CONNECT, null, 0, start + rampUpNanos * index / clients));
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!stopping) {
+                    long now = System.nanoTime();
+                    if (!sending && measureStart != 0) {
+                        sending = true;
+                        for (Bot bot : bots) {
+                            if (bot.handshake == Handshake.READY) {
+                                scheduleSends(bot, now);
+                            }
+                        }
+                    }
+                    runEvents(now);
+
+                    Event next = events.peek();
+                    long timeout = next == null ? 100 : TimeUnit.NANOSECONDS.toMillis(next.time - now) + 1;
+                    selector.select(Math.min(100, Math.max(1, timeout)));
+
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        handleKey(key);
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException e) {
+                System.out.println(Thread.currentThread().getName() + " stopped: " + e.getMessage());
+            } finally {
+                for (Bot bot : bots) {
+                    close(bot);
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // Процесс и так завершается
+                }
+            }
+        }
+
+        private void runEvents(long now) {
+            while (!events.isEmpty() && events.peek().time <= now) {
+                Event event = events.poll();
+                Bot bot = event.bot;
+                try {
+                    switch (event.action) {
+                        case CONNECT -> connect(bot, now);
+                        case JOIN -> {
+                            if (bot.handshake == Handshake.READY) {
+                                joinRoom(bot, event.slot, false);
+                            }
+                        }
+                        case SEND -> {
+                            if (bot.handshake == Handshake.READY && event.time < measureEnd) {
+                                send(bot, event.kind, event.time);
+                                event.time += interval(rates[event.kind.ordinal()]);
+                                events.add(event);
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    fail(bot, e.getMessage());
+                }
+            }
+        }
+
+        private void handleKey(SelectionKey key) {
+            Bot bot = (Bot) key.attachment();
+            try {
+                if (!key.isValid()) return;
+
+                if (key.isConnectable()) {
+                    bot.channel.finishConnect();
+                    sendHello(bot);
+                    return;
+                }
+                if (key.isReadable()) {
+                    int read = bot.decoder.read(bot.channel);
+                    if (read < 0) {
+                        fail(bot, "closed by server");
+                        return;
+                    }
+                    bot.decoder.decode(bot);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    flush(bot);
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                fail(bot, e.getMessage());
+            }
+        }
+
+        private void connect(Bot bot, long now) throws IOException {
+            bot.connectStart = now;
+            bot.channel = SocketChannel.open();
+            bot.channel.configureBlocking(false);
+            bot.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            bot.key = bot.channel.register(selector, SelectionKey.OP_CONNECT, bot);
+            if (bot.channel.connect(address)) {
+                sendHello(bot);
+            }
+        }
+
+        private void sendHello(Bot bot) throws IOException {
+            String nickname = "bot" + bot.index;
+            reserve(bot, ChatProtocolV2.helloSize(nickname));
+            ChatProtocolV2.putHello(bot.out, ChatProtocolV2.VERSION, nickname);
+            bot.handshake = Handshake.HELLO_SENT;
+            flush(bot);
+        }
+
+        void onFrame(Bot bot, byte type, byte subType, ByteBuffer payload) throws IOException {
+            switch (type) {
+                case ChatProtocol.CONNECTION_MANAGEMENT -> {
+                    if (subType == ChatProtocol.CONNECT_SUCCESS && bot.handshake == Handshake.HELLO_SENT) {
+                        ChatProtocolV2.Welcome welcome = messages.welcome.wrap(payload);
+                        if (welcome.version() < ChatProtocolV2.VERSION) {
+                            fail(bot, "server does not speak v2");
+                            return;
+                        }
+                        bot.id = welcome.clientId();
+                        bot.maxMessageLength = welcome.maxMessageLength();
+                        botIds.set(bot.index, bot.id);
+                        stats.connect.record(System.nanoTime() - bot.connectStart);
+
+                        reserve(bot, ChatProtocol.HEADER_SIZE);
+                        ChatProtocolV2.putHeader(bot.out, ChatProtocol.INITIALIZATION, ChatProtocol.INIT_REQUEST,
+                                ChatProtocol.HEADER_SIZE);
+                        bot.handshake = Handshake.INIT_SENT;
+                        flush(bot);
+                    } else if (subType == ChatProtocol.CONNECT_ERROR) {
+                        fail(bot, messages.text.wrap(payload).text());
+                    } else if (subType == ChatProtocol.PING) {
+                        reserve(bot, ChatProtocol.HEADER_SIZE);
+                        ChatProtocolV2.putHeader(bot.out, ChatProtocol.CONNECTION_MANAGEMENT, ChatProtocol.PONG,
+                                ChatProtocol.HEADER_SIZE);
+                        flush(bot);
+                    }
+                }
+                case ChatProtocol.INITIALIZATION -> {
+                    if (subType == ChatProtocol.INIT_DATA) {
+                        learnRooms(messages.initPage.wrap(payload).users().wrapNext());
+                    } else if (subType == ChatProtocol.INIT_COMPLETE && bot.handshake == Handshake.INIT_SENT) {
+                        bot.handshake = Handshake.READY;
+                        stats.ready.record(System.nanoTime() - bot.connectStart);
+                        ready.increment();
+                        for (int slot = 0; slot < roomsPerBot; slot++) {
+                            joinRoom(bot, slot, true);
+                        }
+                        if (sending) {
+                            scheduleSends(bot, System.nanoTime());
+                        }
+                    }
+                }
+                case ChatProtocol.ROOM_MANAGEMENT -> {
+                    if (subType == ChatProtocol.ROOM_MESSAGE) {
+                        ChatProtocolV2.RoomMessage message = messages.roomMessage.wrap(payload);
+                        if (message.senderId() > 0) {
+                            receive(Kind.ROOM, payload, message.textPosition());
+                        }
+                    } else if (subType == ChatProtocol.CREATE_ROOM) {
+                        onRoomCreated(bot, messages.roomCreated.wrap(payload));
+                    } else if (subType == ChatProtocol.ROOM_ADDED) {
+                        ChatProtocolV2.Change change = messages.change.wrap(payload);
+                        learnRoom(change.name(), change.id());
+                    }
+                }
+                case ChatProtocol.GROUP_MESSAGE -> {
+                    ChatProtocolV2.ChatMessage message = messages.chatMessage.wrap(payload);
+                    if (message.senderId() > 0) {
+                        receive(Kind.GROUP, payload, message.textPosition());
+                    }
+                }
+                case ChatProtocol.PRIVATE_MESSAGE -> {
+                    if (subType == ChatProtocol.PRIVATE_MSG) {
+                        receive(Kind.PRIVATE, payload, messages.privateMessage.wrap(payload).textPosition());
+                    }
+                }
+                default -> {
+                    // Списки пользователей боту не нужны
+                }
+            }
+        }
+
+        // Задержка читается из байтов кадра без сборки строки: на рассылках в общий чат
+        // каждое сообщение получают все боты
+        private void receive(Kind kind, ByteBuffer payload, int textPosition) {
+            long sentAt = sentAt(payload, textPosition);
+            if (sentAt < 0) return;
+
+            stats.latency[kind.ordinal()].record(System.nanoTime() - sentAt);
+            stats.received[kind.ordinal()]++;
+            received.increment();
+        }
+
+        // Текст бота начинается с "#<runId>:<nanoTime> "
+        private long sentAt(ByteBuffer payload, int at) {
+            int limit = payload.limit();
+            if (at >= limit || payload.get(at) != '#') return -1;
+
+            long run = 0;
+            int i = at + 1;
+            for (; i < limit && payload.get(i) != ':'; i++) {
+                run = run * 10 + (payload.get(i) - '0');
+            }
+            if (run != runId) return -1;
+
+            long nanos = 0;
+            boolean negative = i + 1 < limit && payload.get(i + 1) == '-';
+            for (i += negative ? 2 : 1; i < limit && payload.get(i) != ' '; i++) {
+                nanos = nanos * 10 + (payload.get(i) - '0');
+            }
+            return negative ? -nanos : nanos;
+        }
+
+        private void scheduleSends(Bot bot, long now) {
+            for (Kind kind : Kind.values()) {
+                double rate = rates[kind.ordinal()];
+                if (rate > 0) {
+                    // Случайная фаза, чтобы боты с фиксированным интервалом не слали все разом
+                    long first = now + (long) (random.nextDouble() * TimeUnit.SECONDS.toNanos(1) / rate);
+                    events.add(new Event(bot, Action.SEND, kind, 0, first));
+                }
+            }
+        }
+
+        private long interval(double rate) {
+            double seconds = poisson ? -Math.log(1 - random.nextDouble()) / rate : 1 / rate;
+            return (long) (seconds * TimeUnit.SECONDS.toNanos(1));
+        }
+
+        // Момент отправки — запланированный, а не фактический: если генератор отстаёт,
+        // его опоздание попадает в задержку, а не прячется (coordinated omission)
+        private void send(Bot bot, Kind kind, long scheduled) throws IOException {
+            String prefix = "#" + runId + ":" + scheduled + " ";
+            int size = Math.min(Math.max(sizes.sample(random), prefix.length()), bot.maxMessageLength);
+            String text = prefix + padding.substring(0, Math.max(0, size - prefix.length()));
+
+            switch (kind) {
+                case GROUP -> {
+                    if (!reserve(bot, ChatProtocolV2.textSize(text))) return;
+                    ChatProtocolV2.putText(bot.out, ChatProtocol.GROUP_MESSAGE, (byte) 0x01, text);
+                }
+                case ROOM -> {
+                    int roomId = bot.rooms[random.nextInt(roomsPerBot)];
+                    if (roomId == 0 || !reserve(bot, ChatProtocolV2.roomPostSize(text))) return;
+                    ChatProtocolV2.putRoomPost(bot.out, roomId, text);
+                }
+                case PRIVATE -> {
+                    int peerId = botIds.get(random.nextInt(clients));
+                    if (peerId == 0 || peerId == bot.id || !reserve(bot, ChatProtocolV2.privateMessageSize(text))) return;
+                    ChatProtocolV2.putPrivateMessage(bot.out, peerId, text);
+                }
+            }
+
+            stats.sent[kind.ordinal()]++;
+            sent.increment();
+            flush(bot);
+        }
+
+        // Комнату создаёт первый, кому она понадобилась; остальные входят по id из ROOM_ADDED
+        private void joinRoom(Bot bot, int slot, boolean create) throws IOException {
+            String name = bot.roomName(slot);
+            Integer roomId = roomIds.get(name);
+            if (roomId != null) {
+                if (!reserve(bot, ChatProtocolV2.idSize())) return;
+                ChatProtocolV2.putId(bot.out, ChatProtocol.ROOM_MANAGEMENT, ChatProtocol.JOIN_ROOM, roomId);
+                bot.rooms[slot] = roomId;
+                flush(bot);
+            } else if (create) {
+                if (!reserve(bot, ChatProtocolV2.textSize(name))) return;
+                ChatProtocolV2.putText(bot.out, ChatProtocol.ROOM_MANAGEMENT, ChatProtocol.CREATE_ROOM, name);
+                flush(bot);
+            } else if (++bot.joinAttempts < MAX_JOIN_ATTEMPTS) {
+                events.add(new Event(bot, Action.JOIN, null, slot, System.nanoTime() + JOIN_RETRY_NANOS));
+            }
+        }
+
+        private void onRoomCreated(Bot bot, ChatProtocolV2.RoomCreated created) {
+            String name = created.name();
+            for (int slot = 0; slot < roomsPerBot; slot++) {
+                if (!name.equals(bot.roomName(slot))) continue;
+
+                if (created.success()) {
+                    roomIds.putIfAbsent(name, created.roomId());
+                    bot.rooms[slot] = created.roomId();
+                } else {
+                    // Комнату успел создать другой бот, её id придёт в ROOM_ADDED
+                    events.add(new Event(bot, Action.JOIN, null, slot, System.nanoTime() + JOIN_RETRY_NANOS));
+                }
+            }
+        }
+
+        private void learnRooms(ChatProtocolV2.EntryList list) {
+            if (roomIds.size() >= rooms) return;
+
+            while (list.next()) {
+                learnRoom(list.name(), list.id());
+            }
+        }
+
+        private void learnRoom(String name, int id) {
+            if (name.startsWith(ROOM_PREFIX)) {
+                roomIds.putIfAbsent(name, id);
+            }
+        }
+
+        // Неотправленный хвост остаётся в буфере; если новое сообщение не помещается, бот его пропускает
+        private boolean reserve(Bot bot, int size) {
+            if (bot.out.remaining() >= size) return true;
+
+            if (bot.out.position() == 0) {
+                bot.out = ByteBuffer.allocate(size);
+                return true;
+            }
+            stats.skipped++;
+            return false;
+        }
+
+        private void flush(Bot bot) throws IOException {
+            bot.out.flip();
+            bot.channel.write(bot.out);
+            bot.out.compact();
+
+            int ops = bot.out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+            if (bot.key.interestOps() != ops) {
+                bot.key.interestOps(ops);
+            }
+        }
+
+        private void fail(Bot bot, String reason) {
+            if (bot.handshake == Handshake.CLOSED) return;
+
+            if (bot.handshake == Handshake.READY) {
+                ready.decrement();
+                stats.disconnected++;
+            } else {
+                failed.increment();
+            }
+            stats.failures.merge(String.valueOf(reason), 1, Integer::sum);
+            close(bot);
+        }
+
+        private void close(Bot bot) {
+            bot.handshake = Handshake.CLOSED;
+            botIds.set(bot.index, 0);
+            if (bot.channel == null) return;
+
+            try {
+                bot.channel.close();
+            } catch (IOException e) {
+                // Закрываем в любом случае
+            }
+        }
+    }
+
+    private class Bot implements FrameDecoder.FrameHandler {
+        final BotThread thread;
+        final int index;
+        final FrameDecoder decoder = new FrameDecoder();
+        final int[] rooms = new int[roomsPerBot];
+        ByteBuffer out = ByteBuffer.allocate(OUTPUT_BUFFER_SIZE);
+        SocketChannel channel;
+        SelectionKey key;
+        Handshake handshake = Handshake.CONNECTING;
+        long connectStart;
+        int id;
+        int maxMessageLength;
+        int joinAttempts;
+
+        Bot(BotThread thread, int index) {
+            this.thread = thread;
+            this.index = index;
+        }
+
+        String roomName(int slot) {
+            return ROOM_PREFIX + (index * roomsPerBot + slot) % LoadGenerator.this.rooms;
+        }
+
+        @Override
+        public void onFrame(byte type, byte subType, ByteBuffer payload) {
+            if (handshake == Handshake.CLOSED) return;
+
+            try {
+                thread.onFrame(this, type, subType, payload);
+            } catch (IOException e) {
+                thread.fail(this, e.getMessage());
+            }
+        }
+    }
+
+    private static class Event {
+        final Bot bot;
+        final Action action;
+        final Kind kind;
+        final int slot;
+        long time;
+
+        Event(Bot bot, Action action, Kind kind, int slot, long time) {
+            this.bot = bot;
+            this.action = action;
+            this.kind = kind;
+            this.slot = slot;
+            this.time = time;
+        }
+    }
+
+    // Счётчики одного потока; после остановки складываются в общий итог
+    private static class Stats {
+        final Histogram connect = new Histogram();
+        final Histogram ready = new Histogram();
+        final Histogram[] latency = new Histogram[Kind.values().length];
+        final long[] sent = new long[Kind.values().length];
+        final long[] received = new long[Kind.values().length];
+        final Map<String, Integer> failures = new TreeMap<>();
+        long skipped;
+        long disconnected;
+
+        Stats() {
+            for (int i = 0; i < latency.length; i++) {
+                latency[i] = new Histogram();
+            }
+        }
+
+        void add(Stats other) {
+            connect.add(other.connect);
+            ready.add(other.ready);
+            for (int i = 0; i < latency.length; i++) {
+                latency[i].add(other.latency[i]);
+                sent[i] += other.sent[i];
+                received[i] += other.received[i];
+            }
+            other.failures.forEach((reason, count) -> failures.merge(reason, count, Integer::sum));
+            skipped += other.skipped;
+            disconnected += other.disconnected;
+        }
+    }
+
+    // Распределение длины текста: fixed:N, uniform:MIN-MAX или exp:MEAN (ограничено сверху 4 * MEAN).
+    // Сверху длину ещё ограничивает maxMessageLength сервера из CONNECT_SUCCESS
+    private static class SizeDistribution {
+        private final String spec;
+        private final int min;
+        private final int max;
+        private final double mean;
+
+        private SizeDistribution(String spec, int min, int max, double mean) {
+            this.spec = spec;
+            this.min = min;
+            this.max = max;
+            this.mean = mean;
+        }
+
+        static SizeDistribution parse(String spec) {
+            String[] parts = spec.split(":", 2);
+            try {
+                switch (parts[0]) {
+                    case "fixed": {
+                        int size = Integer.parseInt(parts[1]);
+                        return new SizeDistribution(spec, size, size, 0);
+                    }
+                    case "uniform": {
+                        String[] range = parts[1].split("-", 2);
+                        return new SizeDistribution(spec, Integer.parseInt(range[0]), Integer.parseInt(range[1]), 0);
+                    }
+                    case "exp": {
+                        double mean = Double.parseDouble(parts[1]);
+                        return new SizeDistribution(spec, 0, (int) (4 * mean), mean);
+                    }
+                }
+            } catch (RuntimeException e) {
+                // Ниже — общее сообщение об ошибке
+            }
+            throw new IllegalArgumentException("Bad size distribution: " + spec
+                    + " (expected fixed:N, uniform:MIN-MAX or exp:MEAN)");
+        }
+
+        int sample(SplittableRandom random) {
+            if (mean > 0) {
+                return (int) Math.min(max, -Math.log(1 - random.nextDouble()) * mean);
+            }
+            return min == max ? min : random.nextInt(min, max + 1);
+        }
+
+        int max() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return spec;
+        }
+    }
+
+    private void report(Stats stats) throws IOException {
+        double seconds = (double) durationNanos / TimeUnit.SECONDS.toNanos(1);
+
+        System.out.println();
+        System.out.printf("%-8s %9s %9s %9s %9s %9s %9s %9s %9s%n",
+                "", "sent", "received", "sent/s", "recv/s", "p50 ms", "p99 ms", "p999 ms", "max ms");
+        row("connect", -1, stats.connect, seconds);
+        row("ready", -1, stats.ready, seconds);
+        for (Kind kind : Kind.values()) {
+            row(kind.name().toLowerCase(), stats.sent[kind.ordinal()], stats.latency[kind.ordinal()], seconds);
+        }
+        System.out.printf("skipped sends (buffer full): %d, disconnected after ready: %d%n",
+                stats.skipped, stats.disconnected);
+        stats.failures.forEach((reason, count) -> System.out.println("failed: " + count + " x " + reason));
+
+        if (json != null) {
+            Files.writeString(Path.of(json), toJson(stats, seconds));
+            System.out.println("JSON written to " + json);
+        }
+    }
+
+    private static void row(String name, long sentCount, Histogram histogram, double seconds) {
+        boolean messages = sentCount >= 0;
+        System.out.printf("%-8s %9s %9d %9s %9s %9.3f %9.3f %9.3f %9.3f%n",
+                name,
+                messages ? String.valueOf(sentCount) : "",
+                histogram.count(),
+                messages ? String.format("%.0f", sentCount / seconds) : "",
+                messages ? String.format("%.0f", histogram.count() / seconds) : "",
+                millis(histogram.percentile(50)), millis(histogram.percentile(99)),
+                millis(histogram.percentile(99.9)), millis(histogram.max()));
+    }
+
+    private String toJson(Stats stats, double seconds) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("{\n")
+                .append("  \"timestamp\": \"").append(Instant.now()).append("\",\n")
+                .append("  \"clients\": ").append(clients).append(",\n")
+                .append("  \"durationSeconds\": ").append(seconds).append(",\n")
+                .append("  \"size\": \"").append(sizes).append("\",\n")
+                .append("  \"arrival\": \"").append(poisson ? "poisson" : "fixed").append("\",\n")
+                .append("  \"failed\": ").append(failed.sum()).append(",\n")
+                .append("  \"disconnected\": ").append(stats.disconnected).append(",\n")
+                .append("  \"skipped\": ").append(stats.skipped).append(",\n")
+                .append("  \"connect\": ").append(histogramJson(stats.connect)).append(",\n")
+                .append("  \"ready\": ").append(histogramJson(stats.ready)).append(",\n")
+                .append("  \"messages\": {");
+
+        for (Kind kind : Kind.values()) {
+            int i = kind.ordinal();
+            builder.append(i == 0 ? "\n" : ",\n")
+                    .append("    \"").append(kind.name().toLowerCase()).append("\": {")
+                    .append("\"rate\": ").append(rates[i])
+                    .append(", \"sent\": ").append(stats.sent[i])
+                    .append(", \"received\": ").append(stats.received[i])
+                    .append(", \"receivedPerSecond\": ").append(String.format("%.1f", stats.received[i] / seconds))
+                    .append(", \"latency\": ").append(histogramJson(stats.latency[i])).append('}');
+        }
+        return builder.append("\n  }\n}\n").toString();
+    }
+
+    private static String histogramJson(Histogram histogram) {
+        return String.format("{\"count\": %d, \"meanMs\": %.3f, \"p50Ms\": %.3f, \"p99Ms\": %.3f, \"p999Ms\": %.3f, \"maxMs\": %.3f}",
+                histogram.count(), millis((long) histogram.mean()), millis(histogram.percentile(50)),
+                millis(histogram.percentile(99)), millis(histogram.percentile(99.9)), millis(histogram.max()));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
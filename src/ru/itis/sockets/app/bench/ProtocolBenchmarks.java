@@ -0,0 +1,311 @@
+package ru.itis.sockets.app.bench;
+
+import ru.itis.sockets.app.simple.entities.SocketMessage;
+import ru.itis.sockets.app.simple.utils.MessageUtils;
+import ru.itis.sockets.app.utils.Utf8;
+import ru.itis.sockets.app.withSwing.ChatProtocol;
+import ru.itis.sockets.app.withSwing.ChatProtocolV2;
+import ru.itis.sockets.app.withSwing.ServerConfig;
+import ru.itis.sockets.app.withSwing.utils.FrameDecoder;
+import ru.itis.sockets.app.withSwing.utils.FramePool;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.Locale;
+
+// Кодирование и разбор кадров обоих протоколов на разных размерах и алфавитах.
+// Запуск: java [-Dbench.filter=regex] [-Dbench.json=file] [-Dbench.csv=file] ru.itis.sockets.app.bench.ProtocolBenchmarks
+public class ProtocolBenchmarks {
+    // Сколько кадров лежит в зацикленном потоке для разбора
+    private static final int FRAMES_PER_STREAM = 16;
+    // Размер порции при чтении по кусочкам: кадр почти всегда разрезан между чтениями
+    private static final int FRAGMENT = 7;
+
+    private static final String[] CHARSETS = {"ascii", "cyrillic", "emoji"};
+
+    public static void main(String[] args) throws Exception {
+        Locale.setDefault(Locale.ROOT);
+        Bench bench = new Bench();
+
+        for (String charset : CHARSETS) {
+            for (Payload payload : payloads(charset)) {
+                if (payload.bytes <= ChatProtocol.MAX_DATA_LENGTH) {
+                    withSwing(bench, payload);
+                }
+                if (payload.bytes <= MessageUtils.MAX_DATA_LENGTH) {
+                    simple(bench, payload);
+                }
+            }
+        }
+
+        report(bench.getResults());
+    }
+
+    private static void withSwing(Bench bench, Payload payload) throws Exception {
+        String text = payload.text;
+
+        bench.run("v1.createMessage", payload.size, payload.charset, 0,
+                () -> {
+                    Bench.consume(ChatProtocol.createMessage(ChatProtocol.GROUP_MESSAGE, (byte) 0, text));
+                    return 1;
+                });
+
+        ByteBuffer target = ByteBuffer.allocate(ChatProtocol.HEADER_SIZE + ChatProtocol.MAX_DATA_LENGTH);
+        bench.run("v1.encodeInto", payload.size, payload.charset, 0,
+                () -> {
+                    target.clear();
+                    ChatProtocol.encode(target, ChatProtocol.GROUP_MESSAGE, (byte) 0, text, Utf8.length(text));
+                    return 1;
+                });
+
+        FramePool pool = new FramePool(16, Long.MAX_VALUE);
+        bench.run("v1.framePool", payload.size, payload.charset, 0,
+                () -> {
+                    pool.encode(ChatProtocol.GROUP_MESSAGE, (byte) 0, text).release();
+                    return 1;
+                });
+
+        byte[] v1Frame = toArray(ChatProtocol.createMessage(ChatProtocol.GROUP_MESSAGE, (byte) 0, text));
+        decode(bench, "v1.decode", payload, v1Frame, (type, subType, data) -> Bench.consume(ChatProtocol.decodeData(data)));
+
+        // v2: сообщение комнаты с id и временем, строка занимает на 2 байта больше
+        if (ChatProtocolV2.roomMessageSize(text) - ChatProtocol.HEADER_SIZE > ChatProtocol.MAX_DATA_LENGTH) return;
+
+        bench.run("v2.encodeInto", payload.size, payload.charset, 0,
+                () -> {
+                    target.clear();
+                    ChatProtocolV2.putRoomMessage(target, 1, 2, 3L, text);
+                    return 1;
+                });
+
+        target.clear();
+        ChatProtocolV2.putRoomMessage(target, 1, 2, 3L, text);
+        target.flip();
+        byte[] v2Frame = toArray(target);
+        ChatProtocolV2.RoomMessage flyweight = new ChatProtocolV2.RoomMessage();
+        decode(bench, "v2.decode", payload, v2Frame, (type, subType, data) -> {
+            ChatProtocolV2.RoomMessage message = flyweight.wrap(data);
+            Bench.consume(message.text());
+            Bench.consume(message.timestamp());
+        });
+    }
+
+    private static void decode(Bench bench, String name, Payload payload, byte[] frame,
+                               FrameDecoder.FrameHandler handler) throws Exception {
+        for (int chunk : new int[]{0, FRAGMENT}) {
+            LoopChannel channel = new LoopChannel(repeat(frame), chunk);
+            FrameDecoder decoder = new FrameDecoder();
+            bench.run(name, payload.size, payload.charset, chunk,
+                    () -> {
+                        decoder.read(channel);
+                        return decoder.decode(handler);
+                    });
+        }
+    }
+
+    private static void simple(Bench bench, Payload payload) throws Exception {
+        String text = payload.text;
+
+        MessageUtils writer = new MessageUtils();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(OutputStream.nullOutputStream()));
+        bench.run("simple.writeMessage", payload.size, payload.charset, 0,
+                () -> {
+                    writer.writeMessage(out, text);
+                    return 1;
+                });
+
+        bench.run("simple.encode", payload.size, payload.charset, 0,
+                () -> {
+                    Bench.consume(MessageUtils.encode(text));
+                    return 1;
+                });
+
+        byte[] frame = MessageUtils.encode(text);
+        for (int chunk : new int[]{0, FRAGMENT}) {
+            MessageUtils reader = new MessageUtils();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new LoopStream(repeat(frame), chunk)));
+            bench.run("simple.readMessage", payload.size, payload.charset, chunk,
+                    () -> {
+                        Bench.consume(reader.readMessage(in));
+                        return 1;
+                    });
+        }
+    }
+
+    // От пустой строки до предела каждого протокола и максимального кадра в 64 КБ
+    private static Payload[] payloads(String charset) {
+        String unit = switch (charset) {
+            case "cyrillic" -> "ж";
+            case "emoji" -> "😀";
+            default -> "a";
+        };
+        int unitBytes = unit.getBytes(StandardCharsets.UTF_8).length;
+        int frameUnits = ChatProtocol.MAX_DATA_LENGTH / unitBytes;
+
+        return new Payload[]{
+                new Payload("0", charset, ""),
+                new Payload("32", charset, unit.repeat(32)),
+                new Payload(String.valueOf(SocketMessage.MAX_MESSAGE_LENGTH), charset,
+                        unit.repeat(SocketMessage.MAX_MESSAGE_LENGTH)),
+                new Payload(String.valueOf(ServerConfig.DEFAULT_MAX_MESSAGE_LENGTH), charset,
+                        unit.repeat(ServerConfig.DEFAULT_MAX_MESSAGE_LENGTH)),
+                new Payload("64k", charset, unit.repeat(frameUnits))
+        };
+    }
+
+    private static byte[] repeat(byte[] frame) {
+        byte[] stream = new byte[frame.length * FRAMES_PER_STREAM];
+        for (int i = 0; i < FRAMES_PER_STREAM; i++) {
+            System.arraycopy(frame, 0, stream, i * frame.length, frame.length);
+        }
+        return stream;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static void report(List<Bench.Result> results) throws IOException {
+        String json = System.getProperty("bench.json");
+        if (json != null) {
+            Files.writeString(Path.of(json), toJson(results));
+            System.out.println("JSON written to " + json);
+        }
+
+        String csv = System.getProperty("bench.csv");
+        if (csv != null) {
+            Files.writeString(Path.of(csv), toCsv(results));
+            System.out.println("CSV written to " + csv);
+        }
+    }
+
+    private static String toJson(List<Bench.Result> results) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("{\n")
+                .append("  \"timestamp\": \"").append(Instant.now()).append("\",\n")
+                .append("  \"jvm\": \"").append(System.getProperty("java.vm.name")).append(' ')
+                .append(System.getProperty("java.version")).append("\",\n")
+                .append("  \"cores\": ").append(Runtime.getRuntime().availableProcessors()).append(",\n")
+                .append("  \"results\": [");
+
+        for (int i = 0; i < results.size(); i++) {
+            Bench.Result result = results.get(i);
+            builder.append(i == 0 ? "\n" : ",\n")
+                    .append("    {\"benchmark\": \"").append(result.benchmark)
+                    .append("\", \"payload\": \"").append(result.payload)
+                    .append("\", \"charset\": \"").append(result.charset)
+                    .append("\", \"chunk\": ").append(result.chunk)
+                    .append(", \"nsPerOp\": ").append(number(result.nanosPerOp))
+                    .append(", \"nsError\": ").append(number(result.error))
+                    .append(", \"opsPerSecond\": ").append(number(result.opsPerSecond()))
+                    .append(", \"bytesPerOp\": ").append(number(result.bytesPerOp))
+                    .append(", \"ops\": ").append(result.ops).append('}');
+        }
+        return builder.append("\n  ]\n}\n").toString();
+    }
+
+    private static String toCsv(List<Bench.Result> results) {
+        StringBuilder builder = new StringBuilder("benchmark,payload,charset,chunk,nsPerOp,nsError,opsPerSecond,bytesPerOp,ops\n");
+        for (Bench.Result result : results) {
+            builder.append(result.benchmark).append(',')
+                    .append(result.payload).append(',')
+                    .append(result.charset).append(',')
+                    .append(result.chunk).append(',')
+                    .append(number(result.nanosPerOp)).append(',')
+                    .append(number(result.error)).append(',')
+                    .append(number(result.opsPerSecond())).append(',')
+                    .append(number(result.bytesPerOp)).append(',')
+                    .append(result.ops).append('\n');
+        }
+        return builder.toString();
+    }
+
+    // NaN (нет счётчика аллокаций) в JSON записывается как null
+    private static String number(double value) {
+        return Double.isNaN(value) ? "null" : String.format("%.2f", value);
+    }
+
+    private static class Payload {
+        final String size;
+        final String charset;
+        final String text;
+        final int bytes;
+
+        Payload(String size, String charset, String text) {
+            this.size = size;
+            this.charset = charset;
+            this.text = text;
+            this.bytes = text.getBytes(StandardCharsets.UTF_8).length;
+        }
+    }
+
+    // Бесконечный канал по кругу из готовых кадров; chunk > 0 ограничивает одно чтение,
+    // как при сегментах TCP, которые режут кадры в произвольных местах
+    private static class LoopChannel implements ReadableByteChannel {
+        private final byte[] data;
+        private final int chunk;
+        private int position;
+
+        LoopChannel(byte[] data, int chunk) {
+            this.data = data;
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int read(ByteBuffer target) {
+            int length = Math.min(target.remaining(), data.length - position);
+            if (chunk > 0) {
+                length = Math.min(length, chunk);
+            }
+            target.put(data, position, length);
+            position = (position + length) % data.length;
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class LoopStream extends InputStream {
+        private final byte[] data;
+        private final int chunk;
+        private int position;
+
+        LoopStream(byte[] data, int chunk) {
+            this.data = data;
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int read() {
+            int value = data[position] & 0xFF;
+            position = (position + 1) % data.length;
+            return value;
+        }
+
+        @Override
+        public int read(byte[] target, int offset, int length) {
+            length = Math.min(length, data.length - position);
+            if (chunk > 0) {
+                length = Math.min(length, chunk);
+            }
+            System.arraycopy(data, position, target, offset, length);
+            position = (position + length) % data.length;
+            return length;
+        }
+    }
+}
@@ -28,6 +28,11 @@ public class Client {
 
         System.out.print("Please enter your username: ");
         username = scanner.nextLine();
+        while (!SocketMessage.isValidUsername(username)) {
+            System.out.print("Username must be 1 to " + SocketMessage.MAX_USERNAME_LENGTH
+                    + " characters, try again: ");
+            username = scanner.nextLine();
+        }
 
         while (true) {
             System.out.print("Enter the server port: ");
@@ -61,8 +66,8 @@ public class Client {
 
     public void initializeStreams() {
         try {
-            this.dataOutputStream = new DataOutputStream(socket.getOutputStream());
-            this.dataInputStream = new DataInputStream(socket.getInputStream());
+            this.dataOutputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            this.dataInputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
         } catch (IOException e) {
             System.out.println("Error initializing streams");
             closeEverything();
@@ -7,18 +7,27 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.util.Scanner;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Server {
 
+    private static final int BACKLOG = 1024;
+
     private final ServerSocket serverSocket;
     private int serverPort;
     private final AtomicBoolean running = new AtomicBoolean(true);
+    // Every client gets a reader and a writer thread; virtual ones are cheap enough for 10k+ clients
+    private final boolean virtualThreads = Boolean.parseBoolean(System.getProperty("chat.virtualThreads", "true"));
+    private final ThreadFactory threadFactory = virtualThreads
+            ? Thread.ofVirtual().name("chat-client-", 0).factory()
+            : Thread.ofPlatform().name("chat-client-", 0).factory();
 
     public Server() throws IOException {
         initializeServer();
-        this.serverSocket = new ServerSocket(serverPort);
-        System.out.println("Server started on port " + serverPort);
+        this.serverSocket = new ServerSocket(serverPort, BACKLOG);
+        System.out.println("Server started on port " + serverPort
+                + (virtualThreads ? " (virtual threads)" : " (platform threads)"));
     }
 
     public void initializeServer() {
@@ -42,11 +51,14 @@ public class Server {
                 serverSocket.setSoTimeout(1000);
                 try {
                     Socket socket = serverSocket.accept();
+                    if (!ClientHandler.hasCapacity()) {
+                        System.out.println("Server is already full, connection refused");
+                        socket.close();
+                        continue;
+                    }
                     System.out.println("A new client has connected");
-                    ClientHandler clientHandler = new ClientHandler(socket);
-
-                    Thread thread = new Thread(clientHandler);
-                    thread.start();
+                    ClientHandler clientHandler = new ClientHandler(socket, threadFactory);
+                    threadFactory.newThread(clientHandler).start();
                 } catch (SocketTimeoutException e) {
                     // timeout is good
                 }
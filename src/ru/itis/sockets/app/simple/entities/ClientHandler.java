@@ -5,39 +5,74 @@ import ru.itis.sockets.app.simple.utils.MessageUtils;
 import java.io.*;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ClientHandler implements Runnable {
 
-    private static final int NUMBER_OF_CLIENTS = 10;
-    public static ArrayList<ClientHandler> clientHandlers = new ArrayList<>(NUMBER_OF_CLIENTS);
+    private static final int NUMBER_OF_CLIENTS = Integer.getInteger("chat.maxClients", 1000);
+    // Messages waiting for one client; a full outbox means the client does not keep up
+    private static final int OUTBOX_CAPACITY = 1024;
+    // Same switch as the NIO server: DISCONNECT (default) or DROP the message
+    private static final boolean DROP_WHEN_SLOW =
+            "DROP".equalsIgnoreCase(System.getProperty("chat.slowConsumerPolicy", "DISCONNECT"));
+    // Compared by reference: tells the writer to stop after everything queued before it
+    private static final byte[] CLOSE = new byte[0];
+    // Iterated without copies or locks; the counter reserves places so the limit holds under races
+    public static final Set<ClientHandler> clientHandlers = ConcurrentHashMap.newKeySet();
+    private static final AtomicInteger clientCount = new AtomicInteger();
 
-    public static final MessageUtils MESSAGE_UTILS = new MessageUtils();
+    private static final int STREAM_BUFFER_SIZE = 16 * 1024;
 
-    private Socket socket;
+    private final Socket socket;
+    private final ThreadFactory threadFactory;
+    // Frames are encoded once per broadcast and shared by all outboxes
+    private final BlockingQueue<byte[]> outbox = new ArrayBlockingQueue<>(OUTBOX_CAPACITY);
+    private final AtomicBoolean closed = new AtomicBoolean();
+    // Used only by the reader thread; the writer gets frames that are already encoded
+    private final MessageUtils messageUtils = new MessageUtils();
     private DataInputStream dataInputStream;
     private DataOutputStream dataOutputStream;
     private String clientUsername;
     private volatile boolean connected = true;
 
-    public ClientHandler(Socket socket) {
-        try {
-            this.socket = socket;
-            this.dataOutputStream = new DataOutputStream(socket.getOutputStream());
-            this.dataInputStream = new DataInputStream(socket.getInputStream());
+    public ClientHandler(Socket socket, ThreadFactory threadFactory) {
+        this.socket = socket;
+        this.threadFactory = threadFactory;
+    }
 
-            this.clientUsername = MESSAGE_UTILS.readMessage(dataInputStream);
-            addClient();
-            broadcastMessage("SYSTEM: " + clientUsername + " has entered the chat");
+    @Override
+    public void run() {
+        // The username is read here, not in the accept loop, so a silent client blocks only its own thread
+        try {
+            this.dataOutputStream = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream(), STREAM_BUFFER_SIZE));
+            this.dataInputStream = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream(), STREAM_BUFFER_SIZE));
+            this.clientUsername = messageUtils.readMessage(dataInputStream);
         } catch (IOException e) {
             closeEverything();
+            return;
+        }
+        if (!SocketMessage.isValidUsername(clientUsername)) {
+            System.out.println("Rejected a client with an invalid username");
+            closeEverything();
+            return;
         }
-    }
 
-    @Override
-    public void run() {
+        if (!addClient()) return;
+        threadFactory.newThread(this::writeMessages).start();
+        broadcastMessage("SYSTEM: " + clientUsername + " has entered the chat");
+
         while (connected && socket.isConnected()) {
             try {
-                String message = MESSAGE_UTILS.readMessage(dataInputStream);
+                String message = messageUtils.readMessage(dataInputStream);
                 broadcastMessage(message);
             } catch (IOException e) {
                 if (connected) {
@@ -45,69 +80,109 @@ public class ClientHandler implements Runnable {
                 }
                 closeEverything();
                 break;
+            } catch (IllegalArgumentException e) {
+                // A frame that cannot be relayed must not kill this thread and leak the client's slot
+                System.out.println("Client " + clientUsername + " sent an invalid message: " + e.getMessage());
+                closeEverything();
+                break;
             }
         }
     }
 
-    public void broadcastMessage(String message) {
-        synchronized (clientHandlers) {
-            for (ClientHandler clientHandler : new ArrayList<>(clientHandlers)) {
-                try {
-                    if (clientHandler.connected) {
-                        MESSAGE_UTILS.sendMessage(clientHandler.dataOutputStream, message);
+    // Only this thread writes to the socket, so a slow client delays nobody but itself.
+    // Everything queued since the last pass goes out with a single flush
+    private void writeMessages() {
+        List<byte[]> batch = new ArrayList<>();
+        try {
+            while (true) {
+                batch.add(outbox.take());
+                outbox.drainTo(batch);
+                for (byte[] frame : batch) {
+                    if (frame == CLOSE) {
+                        dataOutputStream.flush();
+                        closeEverything();
+                        return;
                     }
-                } catch (IOException e) {
-                    clientHandler.closeEverything();
+                    dataOutputStream.write(frame);
                 }
+                dataOutputStream.flush();
+                batch.clear();
             }
+        } catch (IOException e) {
+            // the reader thread reports the disconnect
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        closeEverything();
     }
 
-    public void removeClientHandler() {
-        synchronized (clientHandlers) {
-            clientHandlers.remove(this);
-            if (connected) {
-                broadcastMessage("SYSTEM: " + clientUsername + " has left the chat");
+    public void broadcastMessage(String message) {
+        byte[] frame = MessageUtils.encode(message);
+
+        for (ClientHandler clientHandler : clientHandlers) {
+            if (clientHandler.connected && !clientHandler.outbox.offer(frame) && !DROP_WHEN_SLOW) {
+                System.out.println("Client " + clientHandler.clientUsername + " is too slow, disconnecting");
+                clientHandler.closeEverything();
             }
         }
     }
 
-    public void addClient() {
-        synchronized (clientHandlers) {
-            if (clientHandlers.size() < NUMBER_OF_CLIENTS) {
-                clientHandlers.add(this);
-                System.out.println("Client " + clientUsername + " joined. Total clients: " + clientHandlers.size());
-            } else {
-                System.out.println("Server is already full");
-                closeEverything();
-            }
+    public void removeClientHandler() {
+        if (clientHandlers.remove(this)) {
+            clientCount.decrementAndGet();
         }
+        if (connected) {
+            broadcastMessage("SYSTEM: " + clientUsername + " has left the chat");
+        }
+    }
+
+    // A cheap check before the username is read; addClient makes the final decision
+    public static boolean hasCapacity() {
+        return clientCount.get() < NUMBER_OF_CLIENTS;
+    }
+
+    public boolean addClient() {
+        int total = clientCount.incrementAndGet();
+        if (total <= NUMBER_OF_CLIENTS) {
+            clientHandlers.add(this);
+            System.out.println("Client " + clientUsername + " joined. Total clients: " + total);
+            return true;
+        }
+
+        clientCount.decrementAndGet();
+        System.out.println("Server is already full");
+        closeEverything();
+        return false;
     }
 
     public void closeEverything() {
+        if (!closed.compareAndSet(false, true)) return;
+
         connected = false;
         removeClientHandler();
+        // Closing the socket closes both streams; closing the buffered output first would flush into it
         try {
             if (socket != null) socket.close();
-            if (dataOutputStream != null) dataOutputStream.close();
-            if (dataInputStream != null) dataInputStream.close();
         } catch (IOException e) {
             System.out.println("Error closing client connection");
         }
+
+        // Wake the writer if it is waiting for messages
+        outbox.clear();
+        outbox.offer(CLOSE);
     }
 
     public static void notifyServerShutdown() {
-        synchronized (clientHandlers) {
-            for (ClientHandler clientHandler : new ArrayList<>(clientHandlers)) {
-                try {
-                    MESSAGE_UTILS.sendMessage(clientHandler.dataOutputStream,
-                            "SYSTEM: Server is shutting down. Disconnecting...");
-                    clientHandler.connected = false;
-                } catch (IOException e) {
-                    // ignore
-                }
+        byte[] notice = MessageUtils.encode("SYSTEM: Server is shutting down. Disconnecting...");
+
+        for (ClientHandler clientHandler : clientHandlers) {
+            if (!clientHandlers.remove(clientHandler)) continue;
+            clientCount.decrementAndGet();
+
+            clientHandler.connected = false;
+            if (!clientHandler.outbox.offer(notice) || !clientHandler.outbox.offer(CLOSE)) {
+                clientHandler.closeEverything();
             }
-            clientHandlers.clear();
         }
     }
-}
\ No newline at end of file
+}
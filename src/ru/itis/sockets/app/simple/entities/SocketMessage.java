@@ -3,8 +3,14 @@ package ru.itis.sockets.app.simple.entities;
 public class SocketMessage {
     public static final int MESSAGE_LENGTH_SIZE_IN_BYTES = 2;
     public static final int MAX_MESSAGE_LENGTH = 100;
+    // The server repeats the username in its join and leave notices, which must fit into one frame
+    public static final int MAX_USERNAME_LENGTH = 32;
 
     public static boolean isValidLength(String message) {
         return message.length() <= MAX_MESSAGE_LENGTH;
     }
+
+    public static boolean isValidUsername(String username) {
+        return !username.isEmpty() && username.length() <= MAX_USERNAME_LENGTH;
+    }
 }
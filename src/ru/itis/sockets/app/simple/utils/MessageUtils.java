@@ -1,33 +1,78 @@
 package ru.itis.sockets.app.simple.utils;
 
 import ru.itis.sockets.app.simple.entities.SocketMessage;
+import ru.itis.sockets.app.utils.Utf8;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
+// Frame: 2-byte little-endian length of the UTF-8 data, then the data.
+// One instance per connection: the read and the write buffers are reused between messages,
+// so each side may be used by one thread at a time (a reader and a writer can work in parallel)
 public class MessageUtils {
 
-    public void sendMessage(DataOutputStream outputStream, String message) throws IOException {
-        byte[] lengthBytes = new byte[SocketMessage.MESSAGE_LENGTH_SIZE_IN_BYTES];
-        int dataLength = message.length();
-        lengthBytes[0] = (byte) dataLength;
-        lengthBytes[1] = (byte) (dataLength >> 8);
+    public static final int MAX_DATA_LENGTH = 0xFFFF;
+
+    private byte[] readBuffer = new byte[256];
+    private byte[] writeBuffer = new byte[256];
 
-        outputStream.write(lengthBytes);
-        outputStream.write(message.getBytes(StandardCharsets.UTF_8));
+    public void sendMessage(DataOutputStream outputStream, String message) throws IOException {
+        writeMessage(outputStream, message);
         outputStream.flush();
     }
 
+    // Only into the stream's buffer: the caller flushes once after a batch
+    public void writeMessage(DataOutputStream outputStream, String message) throws IOException {
+        int length = Utf8.length(message);
+        checkLength(length);
+
+        int frameLength = SocketMessage.MESSAGE_LENGTH_SIZE_IN_BYTES + length;
+        if (writeBuffer.length < frameLength) {
+            writeBuffer = new byte[Math.max(frameLength, writeBuffer.length * 2)];
+        }
+        putFrame(writeBuffer, message, length);
+        outputStream.write(writeBuffer, 0, frameLength);
+    }
+
+    // A separate array per call: a broadcast encodes once and shares the frame between clients
+    public static byte[] encode(String message) {
+        int length = Utf8.length(message);
+        checkLength(length);
+
+        byte[] frame = new byte[SocketMessage.MESSAGE_LENGTH_SIZE_IN_BYTES + length];
+        putFrame(frame, message, length);
+        return frame;
+    }
+
     public String readMessage(DataInputStream inputStream) throws IOException {
-        byte[] lengthBytes = new byte[SocketMessage.MESSAGE_LENGTH_SIZE_IN_BYTES];
-        inputStream.readFully(lengthBytes);
+        int low = inputStream.read();
+        int high = inputStream.read();
+        if ((low | high) < 0) {
+            throw new EOFException();
+        }
+
+        int messageLength = high << 8 | low;
+        if (readBuffer.length < messageLength) {
+            readBuffer = new byte[Math.max(messageLength, readBuffer.length * 2)];
+        }
+        inputStream.readFully(readBuffer, 0, messageLength);
 
-        int messageLength = (lengthBytes[1] & 0xFF) << 8 | (lengthBytes[0] & 0xFF);
-        byte[] messageData = new byte[messageLength];
-        inputStream.readFully(messageData);
+        return new String(readBuffer, 0, messageLength, StandardCharsets.UTF_8);
+    }
+
+    private static void checkLength(int length) {
+        if (length > MAX_DATA_LENGTH) {
+            throw new IllegalArgumentException("Message too large: " + length + " bytes");
+        }
+    }
 
-        return new String(messageData, StandardCharsets.UTF_8);
+    private static void putFrame(byte[] frame, String message, int length) {
+        frame[0] = (byte) length;
+        frame[1] = (byte) (length >> 8);
+        Utf8.put(ByteBuffer.wrap(frame, SocketMessage.MESSAGE_LENGTH_SIZE_IN_BYTES, length), message);
     }
 }
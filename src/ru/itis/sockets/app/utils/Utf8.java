@@ -0,0 +1,58 @@
+package ru.itis.sockets.app.utils;
+
+import java.nio.ByteBuffer;
+
+// Кодирование UTF-8 без промежуточного byte[]: длина считается заранее, байты пишутся
+// прямо в буфер кадра. Общее для обоих протоколов и для консольного чата
+public final class Utf8 {
+
+    private Utf8() {
+    }
+
+    public static int length(String data) {
+        int length = 0;
+        for (int i = 0; i < data.length(); i++) {
+            char c = data.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < data.length()
+                    && Character.isLowSurrogate(data.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    // Непарные суррогаты заменяются на '?', как в String.getBytes(UTF_8)
+    public static void put(ByteBuffer buffer, String data) {
+        for (int i = 0; i < data.length(); i++) {
+            char c = data.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < data.length()
+                    && Character.isLowSurrogate(data.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, data.charAt(++i));
+                buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+}
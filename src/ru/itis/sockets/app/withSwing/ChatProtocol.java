@@ -1,8 +1,13 @@
 package ru.itis.sockets.app.withSwing;
 
+import ru.itis.sockets.app.utils.Utf8;
+
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 public class ChatProtocol {
+    public static final int VERSION = 1;
+
     public static final byte CONNECTION_MANAGEMENT = 0x01;
     public static final byte GROUP_MESSAGE = 0x02;
     public static final byte PRIVATE_MESSAGE = 0x03;
@@ -14,10 +19,14 @@ public class ChatProtocol {
     public static final byte DISCONNECT = 0x02;
     public static final byte CONNECT_SUCCESS = 0x03;
     public static final byte CONNECT_ERROR = 0x04;
+    // Только v2: сервер проверяет PING-ом молчащее соединение, клиент отвечает PONG
+    public static final byte PING = 0x05;
+    public static final byte PONG = 0x06;
 
     public static final byte ADD_CLIENT = 0x01;
     public static final byte REMOVE_CLIENT = 0x02;
     public static final byte FULL_LIST = 0x03;
+    public static final byte PRESENCE = 0x04;
 
     public static final byte PRIVATE_REQUEST = 0x01;
     public static final byte PRIVATE_MSG = 0x02;
@@ -29,56 +38,49 @@ public class ChatProtocol {
     public static final byte ROOM_MESSAGE = 0x04;
     public static final byte ROOM_LIST = 0x05;
     public static final byte ROOM_USERS = 0x06;
+    public static final byte ROOM_ADDED = 0x07;
+    public static final byte ROOM_REMOVED = 0x08;
 
     public static final byte INIT_REQUEST = 0x01;
     public static final byte INIT_DATA = 0x02;
     public static final byte INIT_COMPLETE = 0x03;
 
-    public static final int MAX_NICKNAME_LENGTH = 15;
-    public static final int MAX_MESSAGE_LENGTH = 500;
-    public static final int MAX_CLIENTS = 10;
-    public static final int MAX_ROOM_NAME_LENGTH = 20;
-    public static final int MAX_ROOMS = 20;
+    public static final int HEADER_SIZE = 4;
+    public static final int MAX_DATA_LENGTH = 65535;
 
     public static ByteBuffer createMessage(byte type, byte subType, String data) {
         if (data == null) {
             data = "";
         }
 
-        byte[] dataBytes = data.getBytes(java.nio.charset.StandardCharsets.UTF_8);
-        if (dataBytes.length > 65535) {
-            throw new IllegalArgumentException("Data too large: " + dataBytes.length + " bytes");
-        }
-
-        ByteBuffer buffer = ByteBuffer.allocate(4 + dataBytes.length);
-        buffer.put(type);
-        buffer.put(subType);
-        buffer.putShort((short) dataBytes.length);
-        buffer.put(dataBytes);
+        int length = Utf8.length(data);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + length);
+        encode(buffer, type, subType, data, length);
         buffer.flip();
         return buffer;
     }
 
-    public static String[] parseMessage(ByteBuffer buffer) {
-        if (buffer.remaining() < 4) return null;
-
-        byte type = buffer.get();
-        byte subType = buffer.get();
-        short dataLength = buffer.getShort();
-
-        if (dataLength < 0 || dataLength > 65535) {
-            throw new IllegalArgumentException("Invalid data length: " + dataLength);
+    // Кодирует кадр прямо в переданный буфер, без промежуточного byte[]
+    public static void encode(ByteBuffer buffer, byte type, byte subType, String data, int length) {
+        if (length > MAX_DATA_LENGTH) {
+            throw new IllegalArgumentException("Data too large: " + length + " bytes");
         }
 
-        if (buffer.remaining() < dataLength) {
-            buffer.position(buffer.position() - 4);
-            return null;
-        }
+        buffer.put(type);
+        buffer.put(subType);
+        buffer.putShort((short) length);
+        Utf8.put(buffer, data);
+    }
 
-        byte[] data = new byte[dataLength];
-        buffer.get(data);
-        String message = new String(data, java.nio.charset.StandardCharsets.UTF_8);
+    // Данные кадра от FrameDecoder: строка собирается прямо из массива буфера без копии
+    public static String decodeData(ByteBuffer payload) {
+        if (payload.hasArray()) {
+            return new String(payload.array(), payload.arrayOffset() + payload.position(),
+                    payload.remaining(), StandardCharsets.UTF_8);
+        }
 
-        return new String[]{String.valueOf(type), String.valueOf(subType), message};
+        byte[] data = new byte[payload.remaining()];
+        payload.duplicate().get(data);
+        return new String(data, StandardCharsets.UTF_8);
     }
 }
\ No newline at end of file
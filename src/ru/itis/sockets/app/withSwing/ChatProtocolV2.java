@@ -0,0 +1,599 @@
+package ru.itis.sockets.app.withSwing;
+
+import ru.itis.sockets.app.utils.Utf8;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Бинарные полезные нагрузки второй версии протокола. Заголовок кадра тот же, что и в v1,
+// поэтому FrameDecoder не меняется. Поля идут подряд: i32/i64 в big-endian,
+// строка — u16 длина + UTF-8. Пользователи и комнаты передаются числовыми id.
+//
+// Версия согласуется в CONNECT_REQUEST: клиент v2 начинает данные с нулевого байта
+// (ник v1 с него начинаться не может) и своей версии, сервер отвечает выбранной
+// версией в CONNECT_SUCCESS. Запрос без маркера — обычный ник клиента v1
+public class ChatProtocolV2 {
+    public static final int VERSION = 2;
+    public static final byte HELLO_MARKER = 0x00;
+
+    // id отправителя: администратор сервера и системные уведомления без автора
+    public static final int SERVER_ID = 0;
+    public static final int NO_SENDER = -1;
+
+    private static final int HEADER_SIZE = ChatProtocol.HEADER_SIZE;
+
+    // CONNECT_REQUEST: [marker][u8 version][str nickname]
+    public static int helloSize(String nickname) {
+        return HEADER_SIZE + 2 + stringSize(nickname);
+    }
+
+    public static void putHello(ByteBuffer buffer, int version, String nickname) {
+        putHeader(buffer, ChatProtocol.CONNECTION_MANAGEMENT, ChatProtocol.CONNECT_REQUEST,
+                helloSize(nickname));
+        buffer.put(HELLO_MARKER);
+        buffer.put((byte) version);
+        putString(buffer, nickname);
+    }
+
+    // CONNECT_SUCCESS: [u8 version][i32 clientId][i32 maxClients][i32 maxRooms]
+    // [u16 maxNickname][u16 maxMessage][u16 maxRoomName] — лимиты клиент берёт отсюда
+    public static int welcomeSize() {
+        return HEADER_SIZE + 19;
+    }
+
+    public static void putWelcome(ByteBuffer buffer, int version, int clientId, ServerConfig config) {
+        putHeader(buffer, ChatProtocol.CONNECTION_MANAGEMENT, ChatProtocol.CONNECT_SUCCESS, welcomeSize());
+        buffer.put((byte) version);
+        buffer.putInt(clientId);
+        buffer.putInt(config.getMaxClients());
+        buffer.putInt(config.getMaxRooms());
+        buffer.putShort((short) config.getMaxNicknameLength());
+        buffer.putShort((short) config.getMaxMessageLength());
+        buffer.putShort((short) config.getMaxRoomNameLength());
+    }
+
+    // Одна строка: причина ошибки, сообщение в общий чат от клиента, имя новой комнаты
+    public static int textSize(String text) {
+        return HEADER_SIZE + stringSize(text);
+    }
+
+    public static void putText(ByteBuffer buffer, byte type, byte subType, String text) {
+        putHeader(buffer, type, subType, textSize(text));
+        putString(buffer, text);
+    }
+
+    // Только id: вход и выход из комнаты
+    public static int idSize() {
+        return HEADER_SIZE + 4;
+    }
+
+    public static void putId(ByteBuffer buffer, byte type, byte subType, int id) {
+        putHeader(buffer, type, subType, idSize());
+        buffer.putInt(id);
+    }
+
+    // Изменения каталога с версией из того же счётчика, что и у страниц INIT_DATA.
+    // ROOM_ADDED: [i64 version][i32 id][str name]; ROOM_REMOVED: [i64 version][i32 id]
+    public static int addedSize(String name) {
+        return HEADER_SIZE + 8 + 4 + stringSize(name);
+    }
+
+    public static void putAdded(ByteBuffer buffer, byte type, byte subType, long version, int id, String name) {
+        putHeader(buffer, type, subType, addedSize(name));
+        buffer.putLong(version);
+        buffer.putInt(id);
+        putString(buffer, name);
+    }
+
+    public static int removedSize() {
+        return HEADER_SIZE + 8 + 4;
+    }
+
+    public static void putRemoved(ByteBuffer buffer, byte type, byte subType, long version, int id) {
+        putHeader(buffer, type, subType, removedSize());
+        buffer.putLong(version);
+        buffer.putInt(id);
+    }
+
+    // GROUP_MESSAGE от сервера: [i32 senderId][i64 timestamp][str text]
+    public static int chatMessageSize(String text) {
+        return HEADER_SIZE + 12 + stringSize(text);
+    }
+
+    public static void putChatMessage(ByteBuffer buffer, int senderId, long timestamp, String text) {
+        putHeader(buffer, ChatProtocol.GROUP_MESSAGE, (byte) 0x02, chatMessageSize(text));
+        buffer.putInt(senderId);
+        buffer.putLong(timestamp);
+        putString(buffer, text);
+    }
+
+    // PRIVATE_MSG: [i32 peerId][str text], peer — получатель от клиента и отправитель от сервера
+    public static int privateMessageSize(String text) {
+        return HEADER_SIZE + 4 + stringSize(text);
+    }
+
+    public static void putPrivateMessage(ByteBuffer buffer, int peerId, String text) {
+        putHeader(buffer, ChatProtocol.PRIVATE_MESSAGE, ChatProtocol.PRIVATE_MSG, privateMessageSize(text));
+        buffer.putInt(peerId);
+        putString(buffer, text);
+    }
+
+    // CREATE_ROOM от сервера: [i32 roomId][u8 success][str name]
+    public static int roomCreatedSize(String name) {
+        return HEADER_SIZE + 5 + stringSize(name);
+    }
+
+    public static void putRoomCreated(ByteBuffer buffer, int roomId, boolean success, String name) {
+        putHeader(buffer, ChatProtocol.ROOM_MANAGEMENT, ChatProtocol.CREATE_ROOM, roomCreatedSize(name));
+        buffer.putInt(roomId);
+        buffer.put((byte) (success ? 1 : 0));
+        putString(buffer, name);
+    }
+
+    // ROOM_MESSAGE от клиента: [i32 roomId][str text]
+    public static int roomPostSize(String text) {
+        return HEADER_SIZE + 4 + stringSize(text);
+    }
+
+    public static void putRoomPost(ByteBuffer buffer, int roomId, String text) {
+        putHeader(buffer, ChatProtocol.ROOM_MANAGEMENT, ChatProtocol.ROOM_MESSAGE, roomPostSize(text));
+        buffer.putInt(roomId);
+        putString(buffer, text);
+    }
+
+    // ROOM_MESSAGE от сервера: [i32 roomId][i32 senderId][i64 timestamp][str text]
+    public static int roomMessageSize(String text) {
+        return HEADER_SIZE + 16 + stringSize(text);
+    }
+
+    public static void putRoomMessage(ByteBuffer buffer, int roomId, int senderId, long timestamp, String text) {
+        putHeader(buffer, ChatProtocol.ROOM_MANAGEMENT, ChatProtocol.ROOM_MESSAGE, roomMessageSize(text));
+        buffer.putInt(roomId);
+        buffer.putInt(senderId);
+        buffer.putLong(timestamp);
+        putString(buffer, text);
+    }
+
+    // Список [u16 count]{[i32 id][str name]}: в INIT_DATA — пользователи, затем комнаты
+    public static int listEntrySize(String name) {
+        return 4 + stringSize(name);
+    }
+
+    public static void putEntryListHeader(ByteBuffer buffer, int count) {
+        buffer.putShort((short) count);
+    }
+
+    public static void putListEntry(ByteBuffer buffer, int id, String name) {
+        buffer.putInt(id);
+        putString(buffer, name);
+    }
+
+    // INIT_DATA — страница снимка: [i64 version]{список пользователей}{список комнат}.
+    // Страниц может быть сколько угодно, у всех страниц одного снимка одна версия
+    public static int initPageSize() {
+        return HEADER_SIZE + 8 + 2 + 2;
+    }
+
+    public static void putInitPageHeader(ByteBuffer buffer, int frameSize, long version) {
+        putHeader(buffer, ChatProtocol.INITIALIZATION, ChatProtocol.INIT_DATA, frameSize);
+        buffer.putLong(version);
+    }
+
+    // PRESENCE — входы и выходы за одно окно агрегатора:
+    // [i64 version][i64 timestamp]{список вошедших}{список вышедших}. Большая пачка делится
+    // на несколько кадров с одной версией
+    public static int presenceSize() {
+        return HEADER_SIZE + 8 + 8 + 2 + 2;
+    }
+
+    public static void putPresenceHeader(ByteBuffer buffer, int frameSize, long version, long timestamp) {
+        putHeader(buffer, ChatProtocol.CLIENT_LIST_MANAGEMENT, ChatProtocol.PRESENCE, frameSize);
+        buffer.putLong(version);
+        buffer.putLong(timestamp);
+    }
+
+    // Заголовок кадра; frameSize включает сам заголовок
+    public static void putHeader(ByteBuffer buffer, byte type, byte subType, int frameSize) {
+        int length = frameSize - HEADER_SIZE;
+        if (length > ChatProtocol.MAX_DATA_LENGTH) {
+            throw new IllegalArgumentException("Data too large: " + length + " bytes");
+        }
+
+        buffer.put(type);
+        buffer.put(subType);
+        buffer.putShort((short) length);
+    }
+
+    public static int stringSize(String value) {
+        return 2 + Utf8.length(value);
+    }
+
+    public static void putString(ByteBuffer buffer, String value) {
+        buffer.putShort((short) Utf8.length(value));
+        Utf8.put(buffer, value);
+    }
+
+    // Flyweight-представления входящих кадров: читают поля прямо из буфера декодера
+    // по абсолютным смещениям, ничего не копируя. Экземпляр переиспользуется и
+    // действителен только внутри обработки текущего кадра
+    public abstract static class Flyweight {
+        ByteBuffer buffer;
+        int offset;
+        int limit;
+
+        void bind(ByteBuffer payload, int minSize) {
+            this.buffer = payload;
+            this.offset = payload.position();
+            this.limit = payload.limit();
+            check(offset, minSize);
+        }
+
+        final void check(int at, int size) {
+            if (at + size > limit) {
+                throw new IllegalArgumentException("Truncated frame");
+            }
+        }
+
+        final int u8(int at) {
+            check(at, 1);
+            return buffer.get(at) & 0xFF;
+        }
+
+        final int i32(int at) {
+            check(at, 4);
+            return buffer.getInt(at);
+        }
+
+        final long i64(int at) {
+            check(at, 8);
+            return buffer.getLong(at);
+        }
+
+        final int u16(int at) {
+            check(at, 2);
+            return buffer.getShort(at) & 0xFFFF;
+        }
+
+        final String string(int at) {
+            int length = u16(at);
+            check(at + 2, length);
+            return decodeString(buffer, at + 2, length);
+        }
+
+        final int stringEnd(int at) {
+            int length = u16(at);
+            check(at + 2, length);
+            return at + 2 + length;
+        }
+
+        // Абсолютная позиция байтов строки в буфере — для чтения без сборки String
+        final int stringStart(int at) {
+            check(at + 2, u16(at));
+            return at + 2;
+        }
+    }
+
+    public static final class Hello extends Flyweight {
+        public static boolean matches(ByteBuffer payload) {
+            return payload.remaining() >= 2 && payload.get(payload.position()) == HELLO_MARKER;
+        }
+
+        public Hello wrap(ByteBuffer payload) {
+            bind(payload, 4);
+            return this;
+        }
+
+        public int version() {
+            return u8(offset + 1);
+        }
+
+        public String nickname() {
+            return string(offset + 2);
+        }
+    }
+
+    public static final class Welcome extends Flyweight {
+        public Welcome wrap(ByteBuffer payload) {
+            bind(payload, 19);
+            return this;
+        }
+
+        public int version() {
+            return u8(offset);
+        }
+
+        public int clientId() {
+            return i32(offset + 1);
+        }
+
+        public int maxClients() {
+            return i32(offset + 5);
+        }
+
+        public int maxRooms() {
+            return i32(offset + 9);
+        }
+
+        public int maxNicknameLength() {
+            return u16(offset + 13);
+        }
+
+        public int maxMessageLength() {
+            return u16(offset + 15);
+        }
+
+        public int maxRoomNameLength() {
+            return u16(offset + 17);
+        }
+    }
+
+    public static final class Text extends Flyweight {
+        public Text wrap(ByteBuffer payload) {
+            bind(payload, 2);
+            return this;
+        }
+
+        public String text() {
+            return string(offset);
+        }
+    }
+
+    public static final class Id extends Flyweight {
+        public Id wrap(ByteBuffer payload) {
+            bind(payload, 4);
+            return this;
+        }
+
+        public int id() {
+            return i32(offset);
+        }
+    }
+
+    // name() есть только у добавлений
+    public static final class Change extends Flyweight {
+        public Change wrap(ByteBuffer payload) {
+            bind(payload, 12);
+            return this;
+        }
+
+        public long version() {
+            return i64(offset);
+        }
+
+        public int id() {
+            return i32(offset + 8);
+        }
+
+        public String name() {
+            return string(offset + 12);
+        }
+    }
+
+    public static final class ChatMessage extends Flyweight {
+        public ChatMessage wrap(ByteBuffer payload) {
+            bind(payload, 14);
+            return this;
+        }
+
+        public int senderId() {
+            return i32(offset);
+        }
+
+        public long timestamp() {
+            return i64(offset + 4);
+        }
+
+        public String text() {
+            return string(offset + 12);
+        }
+
+        public int textPosition() {
+            return stringStart(offset + 12);
+        }
+    }
+
+    public static final class PrivateMessage extends Flyweight {
+        public PrivateMessage wrap(ByteBuffer payload) {
+            bind(payload, 6);
+            return this;
+        }
+
+        public int peerId() {
+            return i32(offset);
+        }
+
+        public String text() {
+            return string(offset + 4);
+        }
+
+        public int textPosition() {
+            return stringStart(offset + 4);
+        }
+    }
+
+    public static final class RoomCreated extends Flyweight {
+        public RoomCreated wrap(ByteBuffer payload) {
+            bind(payload, 7);
+            return this;
+        }
+
+        public int roomId() {
+            return i32(offset);
+        }
+
+        public boolean success() {
+            return u8(offset + 4) != 0;
+        }
+
+        public String name() {
+            return string(offset + 5);
+        }
+    }
+
+    public static final class RoomPost extends Flyweight {
+        public RoomPost wrap(ByteBuffer payload) {
+            bind(payload, 6);
+            return this;
+        }
+
+        public int roomId() {
+            return i32(offset);
+        }
+
+        public String text() {
+            return string(offset + 4);
+        }
+    }
+
+    public static final class RoomMessage extends Flyweight {
+        public RoomMessage wrap(ByteBuffer payload) {
+            bind(payload, 18);
+            return this;
+        }
+
+        public int roomId() {
+            return i32(offset);
+        }
+
+        public int senderId() {
+            return i32(offset + 4);
+        }
+
+        public long timestamp() {
+            return i64(offset + 8);
+        }
+
+        public String text() {
+            return string(offset + 16);
+        }
+
+        public int textPosition() {
+            return stringStart(offset + 16);
+        }
+    }
+
+    // Курсор по списку записей: next() переходит к следующей, id()/name() читают текущую
+    public static final class EntryList extends Flyweight {
+        private int count;
+        private int index;
+        private int cursor;
+        private int next;
+
+        public EntryList wrap(ByteBuffer payload) {
+            bind(payload, 2);
+            return at(offset);
+        }
+
+        // Следующий список в том же кадре начинается сразу после последней записи
+        public EntryList wrapNext() {
+            while (next()) {
+                // Пропускаем оставшиеся записи
+            }
+            return at(next);
+        }
+
+        // Список внутри нагрузки другого flyweight, после его полей
+        EntryList wrap(ByteBuffer payload, int start, int end) {
+            this.buffer = payload;
+            this.offset = start;
+            this.limit = end;
+            return at(start);
+        }
+
+        private EntryList at(int start) {
+            count = u16(start);
+            index = -1;
+            next = start + 2;
+            return this;
+        }
+
+        public int count() {
+            return count;
+        }
+
+        public boolean next() {
+            if (index + 1 >= count) {
+                return false;
+            }
+            index++;
+            cursor = next;
+            next = stringEnd(cursor + 4);
+            return true;
+        }
+
+        public int id() {
+            return i32(cursor);
+        }
+
+        public String name() {
+            return string(cursor + 4);
+        }
+    }
+
+    public static final class InitPage extends Flyweight {
+        private final EntryList entries = new EntryList();
+
+        public InitPage wrap(ByteBuffer payload) {
+            bind(payload, 12);
+            return this;
+        }
+
+        public long version() {
+            return i64(offset);
+        }
+
+        // Пользователи страницы; комнаты — следующий список, wrapNext()
+        public EntryList users() {
+            return entries.wrap(buffer, offset + 8, limit);
+        }
+    }
+
+    public static final class Presence extends Flyweight {
+        private final EntryList entries = new EntryList();
+
+        public Presence wrap(ByteBuffer payload) {
+            bind(payload, 20);
+            return this;
+        }
+
+        public long version() {
+            return i64(offset);
+        }
+
+        public long timestamp() {
+            return i64(offset + 8);
+        }
+
+        // Вошедшие; вышедшие — следующий список, wrapNext()
+        public EntryList joined() {
+            return entries.wrap(buffer, offset + 16, limit);
+        }
+    }
+
+    // По одному flyweight на тип; набор принадлежит одному потоку
+    public static final class Messages {
+        public final Hello hello = new Hello();
+        public final Welcome welcome = new Welcome();
+        public final Text text = new Text();
+        public final Id id = new Id();
+        public final Change change = new Change();
+        public final ChatMessage chatMessage = new ChatMessage();
+        public final PrivateMessage privateMessage = new PrivateMessage();
+        public final RoomCreated roomCreated = new RoomCreated();
+        public final RoomPost roomPost = new RoomPost();
+        public final RoomMessage roomMessage = new RoomMessage();
+        public final EntryList entryList = new EntryList();
+        public final InitPage initPage = new InitPage();
+        public final Presence presence = new Presence();
+    }
+
+    private static String decodeString(ByteBuffer buffer, int at, int length) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + at, length, StandardCharsets.UTF_8);
+        }
+
+        byte[] data = new byte[length];
+        buffer.get(at, data);
+        return new String(data, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,1996 @@
+package ru.itis.sockets.app.withSwing;
+
+import ru.itis.sockets.app.utils.Utf8;
+import ru.itis.sockets.app.withSwing.utils.AsyncLogger;
+import ru.itis.sockets.app.withSwing.utils.EventBatcher;
+import ru.itis.sockets.app.withSwing.utils.TimingWheel;
+import ru.itis.sockets.app.withSwing.utils.TokenBucket;
+import ru.itis.sockets.app.withSwing.utils.FrameDecoder;
+import ru.itis.sockets.app.withSwing.utils.FramePool;
+import ru.itis.sockets.app.withSwing.utils.MessageLog;
+import ru.itis.sockets.app.withSwing.utils.OutboundQueue;
+import ru.itis.sockets.app.withSwing.utils.SharedFrame;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+public class ChatServerEngine {
+    public static final int DEFAULT_PORT = 9001;
+    private static final int EVENT_QUEUE_CAPACITY = 4096;
+    private static final int OUTBOUND_HIGH_WATERMARK = 256 * 1024;
+    private static final int OUTBOUND_LOW_WATERMARK = 64 * 1024;
+    private static final int MAX_POOLED_FRAMES = 4096;
+    // Не больше 4 МБ direct-памяти на класс размеров: кадров по 64 КБ в пуле остаётся 64
+    private static final long MAX_POOLED_BYTES = 4L * 1024 * 1024;
+    // IOV_MAX в Linux: больше буферов за один writev ядро не примет
+    private static final int MAX_GATHER = 1024;
+    public static final int DEFAULT_ROOM_HISTORY = 100;
+    // Кадр со списком (страница снимка, пачка присутствия): одна запись всегда помещается,
+    // дальше — пока не больше 16 КБ
+    private static final int LIST_FRAME_BYTES = 16 * 1024;
+    public static final int DEFAULT_PRESENCE_WINDOW = 50;
+    public static final int DEFAULT_IDLE_TIMEOUT = 30_000;
+    public static final int DEFAULT_PONG_TIMEOUT = 10_000;
+    // Колесо таймеров воркера: тик 100 мс, оборот 51,2 с
+    private static final int TIMER_TICK_MILLIS = 100;
+    private static final int TIMER_BUCKETS = 512;
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    private final int workerCount;
+    private final ServerConfig config;
+    private final int roomHistorySize = Integer.getInteger("chat.roomHistory", DEFAULT_ROOM_HISTORY);
+    // Журнал комнат включается явно: chat.logDir=<каталог>, без него ничего не пишется
+    private final String logDirectory = System.getProperty("chat.logDir", "");
+    // Молчащему клиенту v2 через idleTimeout уходит PING, без ответа за pongTimeout он отключается.
+    // Не представившееся соединение закрывается через idleTimeout, v1 полагается на SO_KEEPALIVE
+    private final int idleTimeout = Integer.getInteger("chat.idleTimeout", DEFAULT_IDLE_TIMEOUT);
+    private final int pongTimeout = Integer.getInteger("chat.pongTimeout", DEFAULT_PONG_TIMEOUT);
+    private final OutboundQueue.Policy slowConsumerPolicy = OutboundQueue.Policy.valueOf(
+            System.getProperty("chat.slowConsumerPolicy", OutboundQueue.Policy.DISCONNECT.name()));
+
+    // Acceptor принимает соединения и раздаёт их рабочим селекторам
+    private ServerSocketChannel serverChannel;
+    private Selector selector;
+    private Thread serverThread;
+    private Worker[] workers;
+    private int nextWorker;
+    private Admission admission;
+
+    private Thread eventThread;
+    private volatile MessageLog messageLog;
+    private volatile boolean running = false;
+    private volatile String serverName = "Admin";
+
+    private final Map<SocketChannel, ClientInfo> clients = new ConcurrentHashMap<>();
+    private final Map<String, ClientInfo> nicknames = new ConcurrentHashMap<>();
+    private final Map<Integer, ClientInfo> clientsById = new ConcurrentHashMap<>();
+    private final Map<String, ChatRoom> rooms = new ConcurrentHashMap<>();
+    private final Map<Integer, ChatRoom> roomsById = new ConcurrentHashMap<>();
+    private final AtomicInteger clientIds = new AtomicInteger();
+    private final AtomicInteger roomIds = new AtomicInteger();
+    // Растёт при каждом появлении и исчезновении пользователя или комнаты
+    private final AtomicLong directoryVersion = new AtomicLong();
+    private final Map<String, String> bannedIPs = new ConcurrentHashMap<>();
+    private final Object registrationLock = new Object();
+    private final FramePool framePool = new FramePool(MAX_POOLED_FRAMES, MAX_POOLED_BYTES);
+    private final ServerMetrics metrics = new ServerMetrics(this::getClientCount);
+    private ObjectName metricsName;
+
+    // События уходят слушателям через отдельный поток, селектор никогда не ждёт UI
+    private final List<ChatServerListener> listeners = new CopyOnWriteArrayList<>();
+    private final BlockingQueue<Consumer<ChatServerListener>> events =
+            new ArrayBlockingQueue<>(EVENT_QUEUE_CAPACITY);
+    private final AtomicLong droppedEvents = new AtomicLong();
+    // Журнал сервера пишется мимо очереди событий: строки форматирует и сбрасывает в файл
+    // отдельный поток, слушатели получают их пачками. Пустой chat.serverLog — без файла
+    private final AsyncLogger serverLog = new AsyncLogger(
+            Integer.getInteger("chat.serverLogBuffer", AsyncLogger.DEFAULT_CAPACITY),
+            serverLogFile(),
+            Long.getLong("chat.serverLogSize", AsyncLogger.DEFAULT_FILE_SIZE),
+            Integer.getInteger("chat.serverLogFiles", AsyncLogger.DEFAULT_FILES),
+            this::deliverLog);
+    // Входы и выходы рассылаются пачками раз в окно (мс), см. flushPresence
+    private final EventBatcher<PresenceEvent> presence = new EventBatcher<>(
+            Integer.getInteger("chat.presenceWindow", DEFAULT_PRESENCE_WINDOW),
+            this::flushPresence, "chat-server-presence");
+
+    public ChatServerEngine() {
+        this(Integer.getInteger("chat.workers", Runtime.getRuntime().availableProcessors()));
+    }
+
+    public ChatServerEngine(int workerCount) {
+        this(workerCount, ServerConfig.fromSystemProperties());
+    }
+
+    public ChatServerEngine(int workerCount, ServerConfig config) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("Worker count must be positive: " + workerCount);
+        }
+        this.workerCount = workerCount;
+        this.config = config;
+    }
+
+    public void addListener(ChatServerListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(ChatServerListener listener) {
+        listeners.remove(listener);
+    }
+
+    public synchronized void start(int port, String serverName) throws IOException {
+        if (running) {
+            throw new IllegalStateException("Server is already running");
+        }
+
+        this.serverName = serverName;
+        serverLog.start();
+        presence.start();
+
+        // Порт занимается первым: занятый порт не должен оставлять за собой открытый журнал.
+        // Комнаты и их история поднимаются из журнала до того, как сервер начнёт принимать клиентов
+        int recovered = 0;
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.configureBlocking(false);
+            serverChannel.bind(new InetSocketAddress(port));
+
+            selector = Selector.open();
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+            if (!logDirectory.isEmpty()) {
+                messageLog = new MessageLog(Paths.get(logDirectory),
+                        Integer.getInteger("chat.logSegmentSize", MessageLog.DEFAULT_SEGMENT_SIZE),
+                        Integer.getInteger("chat.logSegments", MessageLog.DEFAULT_MAX_SEGMENTS),
+                        this::log);
+                List<MessageLog.RecoveredRoom> saved = messageLog.recover();
+                messageLog.start();
+                recovered = restoreRooms(saved);
+            }
+
+            workers = new Worker[workerCount];
+            for (int i = 0; i < workerCount; i++) {
+                workers[i] = new Worker(i);
+            }
+        } catch (IOException | RuntimeException e) {
+            abortStart();
+            throw e;
+        }
+        nextWorker = 0;
+        admission = new Admission();
+
+        running = true;
+
+        if (eventThread == null) {
+            eventThread = new Thread(this::dispatchEvents, "chat-server-events");
+            eventThread.setDaemon(true);
+            eventThread.start();
+        }
+
+        for (Worker worker : workers) {
+            worker.thread.start();
+        }
+        registerMetrics(port);
+
+        serverThread = new Thread(this::runServer, "chat-server-acceptor");
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        fire(listener -> listener.onServerStarted(port));
+        log("Server started on port {} with {} worker selectors", port, workerCount);
+        if (recovered > 0) {
+            log("Recovered {} rooms from {}", recovered, logDirectory);
+            for (String roomName : rooms.keySet()) {
+                fire(listener -> listener.onRoomCreated(roomName));
+            }
+        }
+    }
+
+    public synchronized void stop() {
+        if (!running) return;
+        running = false;
+
+        try {
+            selector.wakeup();
+            if (serverThread != null && serverThread != Thread.currentThread()) {
+                serverThread.join(2000);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        log("Server stopped");
+        serverLog.close();
+        fire(ChatServerListener::onServerStopped);
+    }
+
+    public void awaitTermination() throws InterruptedException {
+        Thread thread = serverThread;
+        if (thread != null) {
+            thread.join();
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public String getServerName() {
+        return serverName;
+    }
+
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    public ServerConfig getConfig() {
+        return config;
+    }
+
+    public int getMaxClients() {
+        return config.getMaxClients();
+    }
+
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    public long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    public long getDroppedLogRecords() {
+        return serverLog.getDropped();
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public boolean createRoom(String roomName) {
+        return createRoom(roomName, roomHistorySize);
+    }
+
+    public boolean createRoom(String roomName, int historySize) {
+        if (!running || roomName.length() > config.getMaxRoomNameLength() || historySize < 1) {
+            return false;
+        }
+
+        // Комнаты администратора не удаляются, когда из них уходят все участники
+        ChatRoom room = new ChatRoom(roomIds.incrementAndGet(), roomName, true, historySize);
+        if (rooms.putIfAbsent(roomName, room) != null) {
+            return false;
+        }
+        roomsById.put(room.id, room);
+        long version = directoryVersion.incrementAndGet();
+        appendToLog(log -> log.appendRoomCreated(roomName, true, historySize));
+
+        log("Admin created room: {}", roomName);
+        fire(listener -> listener.onRoomCreated(roomName));
+        broadcastRoomUpdate(ChatProtocol.ROOM_ADDED, room, version);
+        return true;
+    }
+
+    public void sendAdminMessage(String message) {
+        if (message.length() > config.getMaxMessageLength()) {
+            return;
+        }
+
+        broadcastGroupMessage(ChatProtocolV2.SERVER_ID, serverName, System.currentTimeMillis(), message, null);
+    }
+
+    public void kick(String nickname) {
+        ClientInfo client = findClientByName(nickname);
+        if (client == null) return;
+
+        client.worker.execute(() -> {
+            sendError(client, "You have been kicked by admin");
+            disconnectClient(client);
+
+            chat(getTimestamp() + " " + nickname + " was kicked");
+            log("Kicked client: {}", nickname);
+        });
+    }
+
+    public void ban(String nickname) {
+        ClientInfo client = findClientByName(nickname);
+        if (client == null) return;
+
+        client.worker.execute(() -> {
+            bannedIPs.put(client.ipAddress, nickname);
+
+            sendError(client, "You have been banned by admin");
+            disconnectClient(client);
+
+            chat(getTimestamp() + " " + nickname + " was banned");
+            log("Banned client: {} (IP: {})", nickname, client.ipAddress);
+        });
+    }
+
+    private void runServer() {
+        while (running) {
+            try {
+                selector.select();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (key.isValid() && key.isAcceptable()) {
+                        acceptClient(key);
+                    }
+                }
+            } catch (IOException e) {
+                if (running) {
+                    log("Server error: {}", e.getMessage());
+                }
+            }
+        }
+
+        closeEverything();
+    }
+
+    private void acceptClient(SelectionKey key) throws IOException {
+        ServerSocketChannel server = (ServerSocketChannel) key.channel();
+        SocketChannel client = server.accept();
+        if (client == null) return;
+
+        // Отказ до регистрации в воркере: ни буферов, ни ClientInfo, только close()
+        if (!admission.admit()) {
+            metrics.rejected();
+            client.close();
+            return;
+        }
+
+        client.configureBlocking(false);
+        client.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+        nextWorker().register(client);
+
+        log("New connection: {}", client.getRemoteAddress());
+    }
+
+    // Наименее загруженный воркер, при равенстве — по кругу
+    private Worker nextWorker() {
+        Worker best = null;
+        for (int i = 0; i < workers.length; i++) {
+            Worker worker = workers[(nextWorker + i) % workers.length];
+            if (best == null || worker.connectionCount.get() < best.connectionCount.get()) {
+                best = worker;
+            }
+        }
+        nextWorker = (nextWorker + 1) % workers.length;
+        return best;
+    }
+
+    private void handleClientMessage(SelectionKey key) {
+        ClientInfo client = (ClientInfo) key.attachment();
+
+        try {
+            int bytesRead = client.decoder.read(client.channel);
+            if (bytesRead == -1) {
+                disconnectClient(client);
+                return;
+            }
+
+            if (bytesRead > 0) {
+                client.lastActivity = client.worker.loopTime;
+                metrics.bytesRead(bytesRead);
+                client.decoder.decode(client.frameHandler);
+            }
+
+        } catch (IOException e) {
+            disconnectClient(client);
+        }
+    }
+
+    private void handleFrame(ClientInfo client, byte type, byte subType, ByteBuffer payload) {
+        if (client.closed) return;
+
+        long now = System.nanoTime();
+        if (client.frameBudget != null && !client.frameBudget.tryTake(now)) {
+            pauseReading(client, client.frameBudget.nanosUntilToken(now));
+            return;
+        }
+        metrics.messageIn(type);
+        TokenBucket typeBudget = typeBudget(client, type, subType);
+        if (typeBudget != null && !typeBudget.tryTake(now)) {
+            metrics.rateLimited(type);
+            return;
+        }
+
+        try {
+            if (client.version >= ChatProtocolV2.VERSION) {
+                processClientMessageV2(client, type, subType, payload);
+            } else if (type == ChatProtocol.CONNECTION_MANAGEMENT && subType == ChatProtocol.CONNECT_REQUEST
+                    && client.nickname == null && ChatProtocolV2.Hello.matches(payload)) {
+                ChatProtocolV2.Hello hello = client.worker.messages.hello.wrap(payload);
+                int version = Math.max(ChatProtocol.VERSION, Math.min(hello.version(), ChatProtocolV2.VERSION));
+                registerClient(client, hello.nickname(), version);
+            } else {
+                processClientMessage(client, type, subType, ChatProtocol.decodeData(payload));
+            }
+        } catch (IllegalArgumentException e) {
+            log("Invalid message from client: {}", e.getMessage());
+        } catch (RuntimeException e) {
+            // Состояние клиента после сбоя посреди обработки неизвестно — отключаем только его,
+            // а не весь цикл воркера
+            log("Error processing message from {}: {}", client.nickname, e.toString());
+            disconnectClient(client);
+        }
+    }
+
+    private static TokenBucket newBucket(ServerConfig.RateLimit limit, long now) {
+        return limit == null ? null : limit.newBucket(now);
+    }
+
+    // Отдельные лимиты только у сообщений, которые расходятся рассылкой
+    private static TokenBucket typeBudget(ClientInfo client, byte type, byte subType) {
+        switch (type) {
+            case ChatProtocol.GROUP_MESSAGE:
+                return client.groupBudget;
+            case ChatProtocol.PRIVATE_MESSAGE:
+                return client.privateBudget;
+            case ChatProtocol.ROOM_MANAGEMENT:
+                return subType == ChatProtocol.ROOM_MESSAGE ? client.roomBudget : null;
+            default:
+                return null;
+        }
+    }
+
+    // Бюджет кадров исчерпан: кадр остаётся в декодере, OP_READ снимается до появления токена.
+    // Пока чтения нет, данные копятся в сокете, и отправителя притормаживает окно TCP
+    private void pauseReading(ClientInfo client, long delayNanos) {
+        client.decoder.pause();
+        client.key.interestOps(client.key.interestOps() & ~SelectionKey.OP_READ);
+        client.worker.timers.schedule(client.resumeTimer, TimeUnit.NANOSECONDS.toMillis(delayNanos) + 1);
+        metrics.readPaused();
+    }
+
+    private void resumeReading(ClientInfo client) {
+        if (client.closed) return;
+
+        try {
+            client.key.interestOps(client.key.interestOps() | SelectionKey.OP_READ);
+        } catch (CancelledKeyException e) {
+            disconnectClient(client);
+            return;
+        }
+        client.decoder.decode(client.frameHandler);
+    }
+
+    private void processClientMessage(ClientInfo client, byte type, byte subType, String data) {
+        switch (type) {
+            case ChatProtocol.CONNECTION_MANAGEMENT:
+                handleConnection(client, subType, data);
+                break;
+            case ChatProtocol.GROUP_MESSAGE:
+                handleGroupMessage(client, data);
+                break;
+            case ChatProtocol.PRIVATE_MESSAGE:
+                handlePrivateMessage(client, subType, data);
+                break;
+            case ChatProtocol.ROOM_MANAGEMENT:
+                handleRoomManagement(client, subType, data);
+                break;
+            case ChatProtocol.INITIALIZATION:
+                handleInitialization(client, subType);
+                break;
+        }
+    }
+
+    // v2: поля читаются flyweight-ами воркера прямо из буфера декодера
+    private void processClientMessageV2(ClientInfo client, byte type, byte subType, ByteBuffer payload) {
+        ChatProtocolV2.Messages messages = client.worker.messages;
+
+        switch (type) {
+            case ChatProtocol.CONNECTION_MANAGEMENT:
+                if (subType == ChatProtocol.DISCONNECT) {
+                    disconnectClient(client);
+                } else if (subType == ChatProtocol.PING) {
+                    sendTo(client, v -> framePool.encode(ChatProtocol.CONNECTION_MANAGEMENT, ChatProtocol.PONG, ""));
+                }
+                // PONG ничего не делает: любой входящий кадр уже сдвинул lastActivity
+                break;
+            case ChatProtocol.GROUP_MESSAGE:
+                handleGroupMessage(client, messages.text.wrap(payload).text());
+                break;
+            case ChatProtocol.PRIVATE_MESSAGE:
+                if (subType == ChatProtocol.PRIVATE_MSG) {
+                    ChatProtocolV2.PrivateMessage message = messages.privateMessage.wrap(payload);
+                    sendPrivateMessage(client, clientsById.get(message.peerId()), message.text());
+                }
+                break;
+            case ChatProtocol.ROOM_MANAGEMENT:
+                handleRoomManagementV2(client, subType, payload, messages);
+                break;
+            case ChatProtocol.INITIALIZATION:
+                handleInitialization(client, subType);
+                break;
+        }
+    }
+
+    private void handleConnection(ClientInfo client, byte subType, String data) {
+        if (subType == ChatProtocol.CONNECT_REQUEST) {
+            registerClient(client, data, ChatProtocol.VERSION);
+        } else if (subType == ChatProtocol.DISCONNECT) {
+            disconnectClient(client);
+        }
+    }
+
+    private void registerClient(ClientInfo client, String nickname, int version) {
+        if (client.nickname != null) return;
+
+        // Ошибки регистрации уже кодируются в согласованной версии
+        client.version = version;
+        String clientIP = client.ipAddress;
+
+        log("{} connecting from {} (protocol v{})", nickname, clientIP, version);
+
+        if (bannedIPs.containsKey(clientIP)) {
+            sendError(client, "You are banned: " + bannedIPs.get(clientIP));
+            closeConnection(client);
+            return;
+        }
+
+        // Воркеры регистрируют клиентов параллельно, проверка ника и лимита должна быть атомарной
+        synchronized (registrationLock) {
+            if (nicknames.containsKey(nickname)) {
+                sendError(client, "Nickname already taken");
+                closeConnection(client);
+                return;
+            }
+
+            if (clients.size() >= config.getMaxClients()) {
+                sendError(client, "Server is full! Maximum " + config.getMaxClients() + " users allowed.");
+                closeConnection(client);
+                return;
+            }
+
+            if (nickname.length() > config.getMaxNicknameLength()) {
+                sendError(client, "Nickname too long! Max " + config.getMaxNicknameLength() + " characters.");
+                closeConnection(client);
+                return;
+            }
+
+            client.id = clientIds.incrementAndGet();
+            client.nickname = nickname;
+            nicknames.put(nickname, client);
+            clientsById.put(client.id, client);
+            clients.put(client.channel, client);
+        }
+        metrics.connected();
+
+        sendTo(client, v -> v >= ChatProtocolV2.VERSION
+                ? v2Frame(ChatProtocolV2.welcomeSize(), buffer -> ChatProtocolV2.putWelcome(buffer, v, client.id, config))
+                : framePool.encode(ChatProtocol.CONNECTION_MANAGEMENT, ChatProtocol.CONNECT_SUCCESS, "Welcome!"));
+
+        presence.add(new PresenceEvent(client, true));
+
+        log("{} connected", nickname);
+    }
+
+    private void handleInitialization(ClientInfo client, byte subType) {
+        if (subType == ChatProtocol.INIT_REQUEST) {
+            if (client.nickname == null || client.snapshot != null) return;
+
+            // v2 получает каталог страницами: первая страница и INIT_COMPLETE уходят сразу,
+            // остальные — по мере того, как освобождается очередь (см. flush)
+            if (client.version >= ChatProtocolV2.VERSION) {
+                client.snapshot = new InitSnapshot(directoryVersion.get(),
+                        clientsById.values().iterator(), roomsById.values().iterator());
+                sendInitPage(client);
+            } else {
+                String users = buildUsersList(ChatProtocol.MAX_DATA_LENGTH - 1);
+                String roomList = buildRoomsList(ChatProtocol.MAX_DATA_LENGTH - 1 - Utf8.length(users));
+                sendMessage(client, ChatProtocol.INITIALIZATION, ChatProtocol.INIT_DATA, users + ";" + roomList);
+            }
+
+            // Отправляем завершение инициализации
+            sendMessage(client, ChatProtocol.INITIALIZATION,
+                    ChatProtocol.INIT_COMPLETE, "");
+        }
+    }
+
+    private void sendInitPage(ClientInfo client) {
+        InitSnapshot snapshot = client.snapshot;
+        SharedFrame frame = initPageFrame(snapshot);
+        if (snapshot.isDone()) {
+            client.snapshot = null;
+        }
+        send(client, frame);
+        frame.release();
+    }
+
+    // Сервер под SERVER_ID идёт первой записью первой страницы, затем пользователи и комнаты
+    private SharedFrame initPageFrame(InitSnapshot snapshot) {
+        List<ClientInfo> users = snapshot.pageUsers;
+        List<ChatRoom> roomList = snapshot.pageRooms;
+        boolean withServer = !snapshot.serverSent;
+
+        int size = ChatProtocolV2.initPageSize();
+        int entries = 0;
+        if (withServer) {
+            size += ChatProtocolV2.listEntrySize(serverName);
+            entries++;
+        }
+        ClientInfo user;
+        while ((user = snapshot.peekUser()) != null) {
+            // Ушедший после начала снимка получит выход в PRESENCE, ещё не объявленный — вход
+            if (clientsById.get(user.id) != user || !user.announced) {
+                snapshot.pollUser();
+                continue;
+            }
+            int entrySize = ChatProtocolV2.listEntrySize(user.nickname);
+            if (entries > 0 && size + entrySize > LIST_FRAME_BYTES) break;
+            size += entrySize;
+            entries++;
+            users.add(snapshot.pollUser());
+        }
+        ChatRoom room;
+        while ((room = snapshot.peekRoom()) != null) {
+            if (roomsById.get(room.id) != room) {
+                snapshot.pollRoom();
+                continue;
+            }
+            int entrySize = ChatProtocolV2.listEntrySize(room.getName());
+            if (entries > 0 && size + entrySize > LIST_FRAME_BYTES) break;
+            size += entrySize;
+            entries++;
+            roomList.add(snapshot.pollRoom());
+        }
+
+        SharedFrame frame = framePool.allocate(size);
+        ByteBuffer buffer = frame.buffer();
+        ChatProtocolV2.putInitPageHeader(buffer, size, snapshot.version);
+        ChatProtocolV2.putEntryListHeader(buffer, users.size() + (withServer ? 1 : 0));
+        if (withServer) {
+            ChatProtocolV2.putListEntry(buffer, ChatProtocolV2.SERVER_ID, serverName);
+        }
+        for (ClientInfo pageUser : users) {
+            ChatProtocolV2.putListEntry(buffer, pageUser.id, pageUser.nickname);
+        }
+        ChatProtocolV2.putEntryListHeader(buffer, roomList.size());
+        for (ChatRoom pageRoom : roomList) {
+            ChatProtocolV2.putListEntry(buffer, pageRoom.id, pageRoom.getName());
+        }
+
+        snapshot.serverSent = true;
+        users.clear();
+        roomList.clear();
+        return frame.seal();
+    }
+
+    // v1 получает каталог одним кадром: имена, которые в него не помещаются, не отправляются
+    private String buildUsersList(int maxBytes) {
+        StringBuilder list = new StringBuilder();
+        int length = appendBounded(list, 0, maxBytes, serverName);
+
+        for (ClientInfo info : clients.values()) {
+            if (info.announced) {
+                length = appendBounded(list, length, maxBytes, info.nickname);
+            }
+        }
+
+        return list.toString();
+    }
+
+    private String buildRoomsList(int maxBytes) {
+        StringBuilder list = new StringBuilder();
+        int length = 0;
+        for (String roomName : rooms.keySet()) {
+            length = appendBounded(list, length, maxBytes, roomName);
+        }
+        return list.toString();
+    }
+
+    private static int appendBounded(StringBuilder list, int length, int maxBytes, String name) {
+        int added = Utf8.length(name) + (list.isEmpty() ? 0 : 1);
+        if (length + added > maxBytes) {
+            return length;
+        }
+        if (!list.isEmpty()) list.append(";");
+        list.append(name);
+        return length + added;
+    }
+
+    private void handleGroupMessage(ClientInfo sender, String message) {
+        if (sender.nickname == null) return;
+
+        if (message.length() > config.getMaxMessageLength()) {
+            return;
+        }
+
+        broadcastGroupMessage(sender.id, sender.nickname, System.currentTimeMillis(), message, sender);
+    }
+
+    private void handlePrivateMessage(ClientInfo sender, byte subType, String data) {
+        String[] parts = data.split("\\|", 2);
+        if (parts.length < 2) return;
+
+        if (subType == ChatProtocol.PRIVATE_MSG) {
+            sendPrivateMessage(sender, findClientByName(parts[0]), parts[1]);
+        }
+    }
+
+    private void sendPrivateMessage(ClientInfo sender, ClientInfo target, String message) {
+        if (sender.nickname == null || target == null) return;
+
+        if (message.length() > config.getMaxMessageLength()) {
+            return;
+        }
+
+        sendTo(target, v -> v >= ChatProtocolV2.VERSION
+                ? v2Frame(ChatProtocolV2.privateMessageSize(message),
+                        buffer -> ChatProtocolV2.putPrivateMessage(buffer, sender.id, message))
+                : framePool.encode(ChatProtocol.PRIVATE_MESSAGE, ChatProtocol.PRIVATE_MSG,
+                        sender.nickname + "|" + message));
+    }
+
+    private void handleRoomManagement(ClientInfo client, byte subType, String data) {
+        if (client.nickname == null) return;
+
+        String[] parts = data.split("\\|", 3);
+
+        switch (subType) {
+            case ChatProtocol.CREATE_ROOM:
+                if (parts.length >= 2) {
+                    createRoom(client, parts[0]);
+                }
+                break;
+
+            case ChatProtocol.JOIN_ROOM:
+                if (parts.length >= 2) {
+                    ChatRoom room = rooms.get(parts[0]);
+                    if (room != null) {
+                        joinRoom(client, room);
+                    }
+                }
+                break;
+
+            case ChatProtocol.ROOM_MESSAGE:
+                if (parts.length >= 3) {
+                    ChatRoom room = rooms.get(parts[0]);
+                    if (room != null) {
+                        postToRoom(client, room, parts[2]);
+                    }
+                }
+                break;
+
+            case ChatProtocol.LEAVE_ROOM:
+                if (parts.length >= 2) {
+                    ChatRoom room = rooms.get(parts[0]);
+                    if (room != null) {
+                        leaveRoom(client, room);
+                    }
+                }
+                break;
+        }
+    }
+
+    private void handleRoomManagementV2(ClientInfo client, byte subType, ByteBuffer payload,
+                                        ChatProtocolV2.Messages messages) {
+        if (client.nickname == null) return;
+
+        switch (subType) {
+            case ChatProtocol.CREATE_ROOM:
+                createRoom(client, messages.text.wrap(payload).text());
+                break;
+
+            case ChatProtocol.JOIN_ROOM: {
+                ChatRoom room = roomsById.get(messages.id.wrap(payload).id());
+                if (room != null) {
+                    joinRoom(client, room);
+                }
+                break;
+            }
+
+            case ChatProtocol.ROOM_MESSAGE: {
+                ChatProtocolV2.RoomPost post = messages.roomPost.wrap(payload);
+                ChatRoom room = roomsById.get(post.roomId());
+                if (room != null) {
+                    postToRoom(client, room, post.text());
+                }
+                break;
+            }
+
+            case ChatProtocol.LEAVE_ROOM: {
+                ChatRoom room = roomsById.get(messages.id.wrap(payload).id());
+                if (room != null) {
+                    leaveRoom(client, room);
+                }
+                break;
+            }
+        }
+    }
+
+    private void createRoom(ClientInfo client, String roomName) {
+        if (roomName.length() > config.getMaxRoomNameLength()) {
+            sendRoomCreated(client, 0, roomName, false);
+            return;
+        }
+
+        if (rooms.size() >= config.getMaxRooms()) {
+            sendRoomCreated(client, 0, roomName, false);
+            log("Cannot create room {}: maximum rooms reached", roomName);
+            return;
+        }
+
+        ChatRoom room = new ChatRoom(roomIds.incrementAndGet(), roomName, false, roomHistorySize);
+        room.addMember(client);
+        if (rooms.putIfAbsent(roomName, room) == null) {
+            roomsById.put(room.id, room);
+            long version = directoryVersion.incrementAndGet();
+            appendToLog(log -> log.appendRoomCreated(roomName, false, roomHistorySize));
+            client.joinedRooms.add(roomName);
+            sendRoomCreated(client, room.id, roomName, true);
+
+            broadcastRoomUpdate(ChatProtocol.ROOM_ADDED, room, version);
+            fire(listener -> listener.onRoomCreated(roomName));
+            log("Room created: {} by {}", roomName, client.nickname);
+        } else {
+            sendRoomCreated(client, 0, roomName, false);
+        }
+    }
+
+    private void sendRoomCreated(ClientInfo client, int roomId, String roomName, boolean success) {
+        sendTo(client, v -> v >= ChatProtocolV2.VERSION
+                ? v2Frame(ChatProtocolV2.roomCreatedSize(roomName),
+                        buffer -> ChatProtocolV2.putRoomCreated(buffer, roomId, success, roomName))
+                : framePool.encode(ChatProtocol.ROOM_MANAGEMENT, ChatProtocol.CREATE_ROOM,
+                        roomName + "|" + client.nickname + "|" + success));
+    }
+
+    private void joinRoom(ClientInfo client, ChatRoom room) {
+        String roomName = room.getName();
+        // Комната могла закрыться на другом воркере между поиском и входом — как будто её нет
+        if (!room.addMember(client)) return;
+        client.joinedRooms.add(roomName);
+
+        // История уходит целиком в очередь и пишется одним writev в конце оборота воркера.
+        // Берутся последние кадры, которые помещаются до highWatermark клиента
+        SharedFrame[] history = room.replay(client.version, client.outbound.available());
+        for (SharedFrame frame : history) {
+            send(client, frame);
+            frame.release();
+        }
+
+        broadcastToRoom(room, ChatProtocolV2.NO_SENDER, null, System.currentTimeMillis(),
+                client.nickname + " joined the room");
+
+        log("{} joined room: {}", client.nickname, roomName);
+    }
+
+    private void postToRoom(ClientInfo client, ChatRoom room, String message) {
+        if (message.length() > config.getMaxMessageLength()) {
+            return;
+        }
+
+        if (room.hasMember(client)) {
+            long timestamp = System.currentTimeMillis();
+            ChatRoom.Entry entry = new ChatRoom.Entry(
+                    roomMessageEncoder(room, client.id, client.nickname, timestamp, message));
+            room.addMessage(entry);
+            appendToLog(log -> log.appendMessage(room.getName(), client.nickname, timestamp, message));
+
+            // Кадры рассылки сразу становятся кадрами истории
+            broadcast(room.members, null, version -> room.frame(entry, version));
+        }
+    }
+
+    private void leaveRoom(ClientInfo client, ChatRoom room) {
+        String roomName = room.getName();
+        boolean abandoned = room.removeMember(client);
+        client.joinedRooms.remove(roomName);
+
+        if (abandoned) {
+            removeRoom(room);
+        } else {
+            broadcastToRoom(room, ChatProtocolV2.NO_SENDER, null, System.currentTimeMillis(),
+                    client.nickname + " left the room");
+        }
+
+        log("{} left room: {}", client.nickname, roomName);
+    }
+
+    private void removeRoom(ChatRoom room) {
+        String roomName = room.getName();
+        if (!rooms.remove(roomName, room)) return;
+        roomsById.remove(room.id, room);
+        long version = directoryVersion.incrementAndGet();
+        room.clearHistory();
+        appendToLog(log -> log.appendRoomRemoved(roomName));
+
+        broadcastRoomUpdate(ChatProtocol.ROOM_REMOVED, room, version);
+        fire(listener -> listener.onRoomRemoved(roomName));
+        log("Room deleted (empty): {}", roomName);
+    }
+
+    private void disconnectClient(ClientInfo clientInfo) {
+        if (clientInfo.nickname != null && clients.remove(clientInfo.channel, clientInfo)) {
+            nicknames.remove(clientInfo.nickname, clientInfo);
+            clientsById.remove(clientInfo.id, clientInfo);
+            metrics.disconnected();
+            long timestamp = System.currentTimeMillis();
+
+            for (String roomName : clientInfo.joinedRooms) {
+                ChatRoom room = rooms.get(roomName);
+                if (room != null) {
+                    if (room.removeMember(clientInfo)) {
+                        removeRoom(room);
+                    } else {
+                        broadcastToRoom(room, ChatProtocolV2.NO_SENDER, null, timestamp,
+                                clientInfo.nickname + " left the room");
+                    }
+                }
+            }
+
+            presence.add(new PresenceEvent(clientInfo, false));
+
+            log("{} disconnected", clientInfo.nickname);
+        }
+
+        closeConnection(clientInfo);
+    }
+
+    // Таймер простоя, поток воркера. Чтение только обновляет lastActivity и колесо не трогает:
+    // сработавший раньше времени таймер переставляется на остаток
+    private void checkIdle(ClientInfo client) {
+        if (client.closed) return;
+        // v1 не знает PING, мёртвые соединения v1 закрывает ядро по SO_KEEPALIVE
+        if (client.nickname != null && client.version < ChatProtocolV2.VERSION) return;
+
+        long now = System.nanoTime();
+        long idle = TimeUnit.NANOSECONDS.toMillis(now - client.lastActivity);
+        if (idle < idleTimeout) {
+            client.worker.timers.schedule(client.idleTimer, idleTimeout - idle);
+        } else if (client.nickname != null && client.lastActivity >= client.pingSentAt) {
+            client.pingSentAt = now;
+            sendTo(client, v -> framePool.encode(ChatProtocol.CONNECTION_MANAGEMENT, ChatProtocol.PING, ""));
+            client.worker.timers.schedule(client.idleTimer, pongTimeout);
+        } else {
+            log("{} timed out after {} ms of silence", client.nickname != null ? client.nickname : client.ipAddress, idle);
+            disconnectClient(client);
+        }
+    }
+
+    private void closeConnection(ClientInfo client) {
+        if (client.closed) return;
+        client.closed = true;
+        client.worker.connectionCount.decrementAndGet();
+        if (client.worker.inWorkerThread()) {
+            client.worker.timers.cancel(client.idleTimer);
+            client.worker.timers.cancel(client.resumeTimer);
+        }
+
+        try {
+            // Последние кадры (причина отказа, kick) уходят без ожидания OP_WRITE
+            client.outbound.flush(client.channel);
+        } catch (IOException e) {
+            // Игнорируем
+        }
+        client.outbound.clear();
+
+        try {
+            client.channel.close();
+        } catch (IOException e) {
+            // Игнорируем
+        }
+    }
+
+    // Поток агрегатора. Вход и выход одного соединения в пределах окна взаимно сокращаются:
+    // о таком клиенте ещё никто не знает, потому что в снимки попадают только объявленные.
+    // v2 получает общие на всех кадры PRESENCE, v1 — прежние ADD/REMOVE_CLIENT и строки в чат.
+    // Выходы везде идут раньше входов: при переподключении тот же ник за одно окно выходит
+    // старым соединением и входит новым, и обратный порядок убрал бы его из списков
+    private void flushPresence(List<PresenceEvent> events) {
+        Map<ClientInfo, Boolean> changes = new LinkedHashMap<>();
+        for (PresenceEvent event : events) {
+            if (!event.joined && changes.get(event.client) == Boolean.TRUE) {
+                changes.remove(event.client);
+            } else {
+                changes.put(event.client, event.joined);
+            }
+        }
+        if (changes.isEmpty()) return;
+
+        List<ClientInfo> joined = new ArrayList<>();
+        List<ClientInfo> left = new ArrayList<>();
+        changes.forEach((client, isJoin) -> (isJoin ? joined : left).add(client));
+        for (ClientInfo client : joined) {
+            client.announced = true;
+        }
+        long version = directoryVersion.incrementAndGet();
+        long timestamp = System.currentTimeMillis();
+
+        List<String> lines = new ArrayList<>(changes.size());
+        for (ClientInfo client : left) {
+            lines.add(formatTime(timestamp) + " " + client.nickname + " left the chat");
+        }
+        for (ClientInfo client : joined) {
+            lines.add(formatTime(timestamp) + " " + client.nickname + " joined the chat");
+        }
+
+        List<SharedFrame> v2 = null;
+        List<SharedFrame> v1 = null;
+        int fanOut = 0;
+        try {
+            for (ClientInfo recipient : clients.values()) {
+                fanOut++;
+                if (recipient.version >= ChatProtocolV2.VERSION) {
+                    if (v2 == null) v2 = presenceFrames(joined, left, version, timestamp);
+                    for (SharedFrame frame : v2) {
+                        send(recipient, frame);
+                    }
+                } else {
+                    if (v1 == null) v1 = legacyPresenceFrames(joined, left, lines);
+                    // Свой вход клиенту v1 не показывается, как и раньше; кадры идут парами
+                    for (int i = 0; i < v1.size(); i++) {
+                        int change = i / 2;
+                        if (change < left.size() || joined.get(change - left.size()) != recipient) {
+                            send(recipient, v1.get(i));
+                        }
+                    }
+                }
+            }
+        } finally {
+            metrics.fanOut(fanOut);
+            if (v2 != null) v2.forEach(SharedFrame::release);
+            if (v1 != null) v1.forEach(SharedFrame::release);
+        }
+
+        List<String> joinedNames = joined.stream().map(client -> client.nickname).toList();
+        List<String> leftNames = left.stream().map(client -> client.nickname).toList();
+        fire(listener -> {
+            listener.onPresenceChanged(joinedNames, leftNames);
+            lines.forEach(listener::onChatMessage);
+        });
+    }
+
+    // Кадры заполняются сначала выходами, так что все выходы пачки приходят не позже входов
+    private List<SharedFrame> presenceFrames(List<ClientInfo> joined, List<ClientInfo> left,
+                                             long version, long timestamp) {
+        List<SharedFrame> frames = new ArrayList<>();
+        int joinedFrom = 0;
+        int leftFrom = 0;
+        do {
+            int size = ChatProtocolV2.presenceSize();
+            int leftTo = leftFrom;
+            while (leftTo < left.size()) {
+                int entrySize = ChatProtocolV2.listEntrySize(left.get(leftTo).nickname);
+                if (leftTo > leftFrom && size + entrySize > LIST_FRAME_BYTES) break;
+                size += entrySize;
+                leftTo++;
+            }
+            int joinedTo = joinedFrom;
+            while (leftTo == left.size() && joinedTo < joined.size()) {
+                int entrySize = ChatProtocolV2.listEntrySize(joined.get(joinedTo).nickname);
+                if ((joinedTo > joinedFrom || leftTo > leftFrom) && size + entrySize > LIST_FRAME_BYTES) break;
+                size += entrySize;
+                joinedTo++;
+            }
+
+            SharedFrame frame = framePool.allocate(size);
+            ByteBuffer buffer = frame.buffer();
+            ChatProtocolV2.putPresenceHeader(buffer, size, version, timestamp);
+            putClientList(buffer, joined.subList(joinedFrom, joinedTo));
+            putClientList(buffer, left.subList(leftFrom, leftTo));
+            frames.add(frame.seal());
+
+            joinedFrom = joinedTo;
+            leftFrom = leftTo;
+        } while (joinedFrom < joined.size() || leftFrom < left.size());
+        return frames;
+    }
+
+    private static void putClientList(ByteBuffer buffer, List<ClientInfo> clients) {
+        ChatProtocolV2.putEntryListHeader(buffer, clients.size());
+        for (ClientInfo client : clients) {
+            ChatProtocolV2.putListEntry(buffer, client.id, client.nickname);
+        }
+    }
+
+    // Для каждого изменения по два кадра: ADD/REMOVE_CLIENT и строка в общий чат, выходы первыми
+    private List<SharedFrame> legacyPresenceFrames(List<ClientInfo> joined, List<ClientInfo> left, List<String> lines) {
+        List<SharedFrame> frames = new ArrayList<>(lines.size() * 2);
+        for (int i = 0; i < lines.size(); i++) {
+            boolean isJoin = i >= left.size();
+            ClientInfo client = isJoin ? joined.get(i - left.size()) : left.get(i);
+            frames.add(framePool.encode(ChatProtocol.CLIENT_LIST_MANAGEMENT,
+                    isJoin ? ChatProtocol.ADD_CLIENT : ChatProtocol.REMOVE_CLIENT, client.nickname));
+            frames.add(framePool.encode(ChatProtocol.GROUP_MESSAGE, (byte)0x02, lines.get(i)));
+        }
+        return frames;
+    }
+
+    // senderName == null — системное уведомление без автора
+    private void broadcastGroupMessage(int senderId, String senderName, long timestamp,
+                                       String message, ClientInfo exclude) {
+        String formatted = senderName == null
+                ? formatTime(timestamp) + " " + message
+                : formatTime(timestamp) + " " + senderName + ": " + message;
+        chat(formatted);
+
+        broadcast(clients.values(), exclude, v -> v >= ChatProtocolV2.VERSION
+                ? v2Frame(ChatProtocolV2.chatMessageSize(message),
+                        buffer -> ChatProtocolV2.putChatMessage(buffer, senderId, timestamp, message))
+                : framePool.encode(ChatProtocol.GROUP_MESSAGE, (byte)0x02, formatted));
+    }
+
+    // v2 получает одно изменение, v1 по-прежнему весь список комнат
+    private void broadcastRoomUpdate(byte updateType, ChatRoom room, long version) {
+        broadcast(clients.values(), null, v -> {
+            if (v < ChatProtocolV2.VERSION) {
+                return framePool.encode(ChatProtocol.ROOM_MANAGEMENT, ChatProtocol.ROOM_LIST,
+                        buildRoomsList(ChatProtocol.MAX_DATA_LENGTH));
+            }
+            if (updateType == ChatProtocol.ROOM_ADDED) {
+                return v2Frame(ChatProtocolV2.addedSize(room.getName()), buffer -> ChatProtocolV2.putAdded(
+                        buffer, ChatProtocol.ROOM_MANAGEMENT, updateType, version, room.id, room.getName()));
+            }
+            return v2Frame(ChatProtocolV2.removedSize(), buffer -> ChatProtocolV2.putRemoved(
+                    buffer, ChatProtocol.ROOM_MANAGEMENT, updateType, version, room.id));
+        });
+    }
+
+    private void broadcastToRoom(ChatRoom room, int senderId, String senderName, long timestamp, String message) {
+        broadcast(room.members, null, roomMessageEncoder(room, senderId, senderName, timestamp, message));
+    }
+
+    // v1 отличает уведомление от сообщения по числу полей: "room|text" против "room|sender|text"
+    private FrameEncoder roomMessageEncoder(ChatRoom room, int senderId, String senderName,
+                                            long timestamp, String message) {
+        return v -> {
+            if (v >= ChatProtocolV2.VERSION) {
+                return v2Frame(ChatProtocolV2.roomMessageSize(message), buffer ->
+                        ChatProtocolV2.putRoomMessage(buffer, room.id, senderId, timestamp, message));
+            }
+            String data = senderName == null
+                    ? room.getName() + "|" + message
+                    : room.getName() + "|" + senderName + "|" + message;
+            return framePool.encode(ChatProtocol.ROOM_MANAGEMENT, ChatProtocol.ROOM_MESSAGE, data);
+        };
+    }
+
+    // Кадр кодируется один раз на версию протокола и только если есть её получатели;
+    // получатели держат ссылки на него до окончания записи
+    private void broadcast(Iterable<ClientInfo> recipients, ClientInfo exclude, FrameEncoder encoder) {
+        SharedFrame v1 = null;
+        SharedFrame v2 = null;
+        int fanOut = 0;
+
+        try {
+            for (ClientInfo client : recipients) {
+                if (client == exclude) continue;
+                fanOut++;
+
+                if (client.version >= ChatProtocolV2.VERSION) {
+                    if (v2 == null) v2 = encoder.encode(ChatProtocolV2.VERSION);
+                    send(client, v2);
+                } else {
+                    if (v1 == null) v1 = encoder.encode(ChatProtocol.VERSION);
+                    send(client, v1);
+                }
+            }
+        } finally {
+            metrics.fanOut(fanOut);
+            if (v1 != null) v1.release();
+            if (v2 != null) v2.release();
+        }
+    }
+
+    private void sendTo(ClientInfo client, FrameEncoder encoder) {
+        SharedFrame frame = encoder.encode(client.version);
+        send(client, frame);
+        frame.release();
+    }
+
+    private void sendError(ClientInfo client, String reason) {
+        SharedFrame frame = errorFrame(client.version, reason);
+        send(client, frame);
+        frame.release();
+    }
+
+    private SharedFrame errorFrame(int version, String reason) {
+        if (version >= ChatProtocolV2.VERSION) {
+            return v2Frame(ChatProtocolV2.textSize(reason), buffer -> ChatProtocolV2.putText(
+                    buffer, ChatProtocol.CONNECTION_MANAGEMENT, ChatProtocol.CONNECT_ERROR, reason));
+        }
+        return framePool.encode(ChatProtocol.CONNECTION_MANAGEMENT, ChatProtocol.CONNECT_ERROR, reason);
+    }
+
+    private SharedFrame v2Frame(int frameSize, Consumer<ByteBuffer> writer) {
+        SharedFrame frame = framePool.allocate(frameSize);
+        writer.accept(frame.buffer());
+        return frame.seal();
+    }
+
+    private void sendMessage(ClientInfo client, byte type, byte subType, String data) {
+        SharedFrame frame = framePool.encode(type, subType, data);
+        send(client, frame);
+        frame.release();
+    }
+
+    // Писать в канал может только его воркер, остальные потоки передают кадр через почтовый ящик
+    private void send(ClientInfo client, SharedFrame frame) {
+        frame.retain();
+        if (client.worker.inWorkerThread()) {
+            write(client, frame);
+        } else {
+            client.worker.execute(() -> write(client, frame));
+        }
+    }
+
+    // Кадр ставится в очередь соединения, запись — один раз за оборот селектора.
+    // Ссылка на кадр переходит очереди
+    private void write(ClientInfo client, SharedFrame frame) {
+        if (client.closed) {
+            frame.release();
+            return;
+        }
+
+        // Тип кадра читается до offer: после него кадр может уйти в пул
+        byte type = frame.buffer().get(0);
+        switch (client.outbound.offer(frame)) {
+            case QUEUED:
+                metrics.messageOut(type);
+                client.worker.markDirty(client);
+                break;
+            case DROPPED:
+                if (client.outbound.getDroppedFrames() == 1) {
+                    log("Slow consumer {}: dropping messages", client.nickname);
+                }
+                break;
+            case OVERFLOW:
+                disconnectSlowConsumer(client);
+                break;
+        }
+    }
+
+    private void flush(ClientInfo client) {
+        if (client.closed) return;
+
+        try {
+            long pending = client.outbound.getPendingBytes();
+            metrics.outboundQueue(pending);
+            boolean drained = client.outbound.flush(client.channel);
+            metrics.bytesWritten(pending - client.outbound.getPendingBytes());
+            int ops = client.key.interestOps();
+            if (drained && (ops & SelectionKey.OP_WRITE) != 0) {
+                client.key.interestOps(ops & ~SelectionKey.OP_WRITE);
+            } else if (!drained && (ops & SelectionKey.OP_WRITE) == 0) {
+                client.key.interestOps(ops | SelectionKey.OP_WRITE);
+            }
+            // Следующая страница снимка кодируется, только когда предыдущие уже в сокете
+            if (drained && client.snapshot != null) {
+                sendInitPage(client);
+            }
+        } catch (IOException | CancelledKeyException e) {
+            // Отключаем после текущей рассылки, а не посреди неё
+            client.worker.execute(() -> disconnectClient(client));
+        }
+    }
+
+    private void disconnectSlowConsumer(ClientInfo client) {
+        if (client.closed || client.disconnecting) return;
+        client.disconnecting = true;
+
+        log("Slow consumer {}: disconnecting, {} bytes pending",
+                client.nickname, client.outbound.getPendingBytes());
+
+        client.outbound.truncate();
+        client.outbound.force(errorFrame(client.version, "Disconnected: too slow to receive messages"));
+        try {
+            client.outbound.flush(client.channel);
+        } catch (IOException e) {
+            // Всё равно отключаем
+        }
+        client.worker.execute(() -> disconnectClient(client));
+    }
+
+    private ClientInfo findClientByName(String name) {
+        return nicknames.get(name);
+    }
+
+    // Запуск не удался: потоки воркеров ещё не стартовали, закрывается то, что успело открыться,
+    // чтобы следующий запуск не получил второй писатель в тот же каталог журнала
+    private void abortStart() {
+        rooms.clear();
+        roomsById.clear();
+        if (messageLog != null) {
+            try {
+                messageLog.close();
+            } catch (IOException e) {
+                log("Error closing message log: {}", e.getMessage());
+            }
+            messageLog = null;
+        }
+        try {
+            if (workers != null) {
+                for (Worker worker : workers) {
+                    if (worker != null) worker.selector.close();
+                }
+            }
+            if (selector != null) selector.close();
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException e) {
+            log("Error stopping server: {}", e.getMessage());
+        }
+        workers = null;
+        selector = null;
+        serverChannel = null;
+    }
+
+    private void closeEverything() {
+        // Отложенные входы и выходы больше некому рассылать; onPresenceChanged не должен
+        // прийти после onServerStopped и оставить в списке администратора призраков
+        presence.stop();
+
+        for (Worker worker : workers) {
+            worker.selector.wakeup();
+        }
+
+        for (Worker worker : workers) {
+            try {
+                worker.thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Воркеры остановлены, поэтому можно писать напрямую из этого потока
+        for (ClientInfo client : clients.values()) {
+            client.outbound.force(errorFrame(client.version, "Server is shutting down"));
+            try {
+                client.outbound.flush(client.channel);
+            } catch (IOException e) {
+                // Игнорируем
+            }
+            client.outbound.clear();
+        }
+        clients.clear();
+        nicknames.clear();
+        clientsById.clear();
+        for (ChatRoom room : rooms.values()) {
+            room.clearHistory();
+        }
+        rooms.clear();
+        roomsById.clear();
+
+        try {
+            for (Worker worker : workers) {
+                for (SelectionKey key : worker.selector.keys()) {
+                    key.channel().close();
+                }
+                worker.selector.close();
+            }
+            if (selector != null) selector.close();
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException e) {
+            log("Error stopping server: {}", e.getMessage());
+        }
+
+        unregisterMetrics();
+
+        if (messageLog != null) {
+            try {
+                messageLog.close();
+            } catch (IOException e) {
+                log("Error closing message log: {}", e.getMessage());
+            }
+            messageLog = null;
+        }
+    }
+
+    // Несколько движков в одном процессе различаются портом
+    private void registerMetrics(int port) {
+        try {
+            metricsName = new ObjectName("ru.itis.sockets.app:type=ChatServer,port=" + port);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, metricsName);
+        } catch (JMException e) {
+            metricsName = null;
+            log("Metrics are not available over JMX: {}", e.getMessage());
+        }
+    }
+
+    private void unregisterMetrics() {
+        if (metricsName == null) return;
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+        } catch (JMException e) {
+            // Уже снят
+        }
+        metricsName = null;
+    }
+
+    // Поднимаются только комнаты администратора: у обычной комнаты после перезапуска нет
+    // участников, и удалить её было бы некому, поэтому в журнале она сразу закрывается.
+    // Комнаты сверх maxRooms остаются в журнале, но не поднимаются
+    private int restoreRooms(List<MessageLog.RecoveredRoom> recovered) {
+        int restored = 0;
+        for (MessageLog.RecoveredRoom saved : recovered) {
+            if (!saved.persistent) {
+                appendToLog(log -> log.appendRoomRemoved(saved.name));
+                continue;
+            }
+            if (restored >= config.getMaxRooms()) {
+                log("Room {} not restored: maximum rooms reached", saved.name);
+                continue;
+            }
+
+            ChatRoom room = new ChatRoom(roomIds.incrementAndGet(), saved.name, saved.persistent, saved.historySize);
+            for (MessageLog.RecoveredMessage message : saved.history) {
+                room.addMessage(new ChatRoom.Entry(recoveredMessageEncoder(room, message)));
+            }
+            rooms.put(room.getName(), room);
+            roomsById.put(room.id, room);
+            restored++;
+        }
+        return restored;
+    }
+
+    // id авторов из прошлого запуска ничего не значат, поэтому v2 получает имя в тексте
+    private FrameEncoder recoveredMessageEncoder(ChatRoom room, MessageLog.RecoveredMessage message) {
+        return v -> {
+            if (v >= ChatProtocolV2.VERSION) {
+                String text = message.sender + ": " + message.text;
+                return v2Frame(ChatProtocolV2.roomMessageSize(text), buffer -> ChatProtocolV2.putRoomMessage(
+                        buffer, room.id, ChatProtocolV2.NO_SENDER, message.timestamp, text));
+            }
+            return framePool.encode(ChatProtocol.ROOM_MANAGEMENT, ChatProtocol.ROOM_MESSAGE,
+                    room.getName() + "|" + message.sender + "|" + message.text);
+        };
+    }
+
+    private void appendToLog(Consumer<MessageLog> append) {
+        MessageLog log = messageLog;
+        if (log != null) {
+            append.accept(log);
+        }
+    }
+
+    private void fire(Consumer<ChatServerListener> event) {
+        if (listeners.isEmpty()) return;
+        if (!events.offer(event)) {
+            droppedEvents.incrementAndGet();
+        }
+    }
+
+    private void dispatchEvents() {
+        while (true) {
+            try {
+                Consumer<ChatServerListener> event = events.take();
+
+                for (ChatServerListener listener : listeners) {
+                    try {
+                        event.accept(listener);
+                    } catch (RuntimeException e) {
+                        // Слушатель не должен ронять поток событий
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void log(String message) {
+        serverLog.log(message);
+    }
+
+    // Шаблонные варианты для частых событий: строка собирается уже в потоке журнала
+    private void log(String template, Object arg) {
+        serverLog.log(template, arg);
+    }
+
+    private void log(String template, Object first, Object second) {
+        serverLog.log(template, first, second);
+    }
+
+    private void log(String template, Object first, Object second, Object third) {
+        serverLog.log(template, first, second, third);
+    }
+
+    private void deliverLog(List<String> lines) {
+        for (ChatServerListener listener : listeners) {
+            try {
+                listener.onLogBatch(lines);
+            } catch (RuntimeException e) {
+                // Слушатель не должен останавливать журнал
+            }
+        }
+    }
+
+    private static Path serverLogFile() {
+        String file = System.getProperty("chat.serverLog", "chat-server.log");
+        return file.isEmpty() ? null : Paths.get(file);
+    }
+
+    private void chat(String message) {
+        fire(listener -> listener.onChatMessage(message));
+    }
+
+    private String getTimestamp() {
+        return formatTime(System.currentTimeMillis());
+    }
+
+    private String formatTime(long timestamp) {
+        return TIME_FORMAT.format(Instant.ofEpochMilli(timestamp));
+    }
+
+    // Работает только в потоке acceptor. Нагрузка снимается не чаще раза в секунду,
+    // так что проверка на каждом accept — это сумма счётчиков воркеров
+    private class Admission {
+        private static final long SAMPLE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+        private final List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+        private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        private final int processors = Runtime.getRuntime().availableProcessors();
+        private long sampledAt = System.nanoTime() - SAMPLE_INTERVAL_NANOS;
+        private String overload;
+        private String lastReason;
+        private int rejected;
+
+        Admission() {
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported()) {
+                    heapPools.add(pool);
+                }
+            }
+        }
+
+        boolean admit() {
+            long now = System.nanoTime();
+            if (now - sampledAt >= SAMPLE_INTERVAL_NANOS) {
+                sampledAt = now;
+                if (rejected > 0) {
+                    log("Admission control rejected {} connections: {}", rejected, lastReason);
+                    rejected = 0;
+                }
+                overload = sample();
+            }
+
+            String reason = overload;
+            if (reason == null && connectionCount() >= config.getMaxConnections()) {
+                reason = "connection limit " + config.getMaxConnections() + " reached";
+            }
+            if (reason == null) {
+                return true;
+            }
+
+            lastReason = reason;
+            rejected++;
+            return false;
+        }
+
+        private String sample() {
+            if (config.getMaxHeapUsage() < 100) {
+                // Занятость после сборки: мусор между сборками не должен закрывать вход
+                long used = 0;
+                for (MemoryPoolMXBean pool : heapPools) {
+                    MemoryUsage usage = pool.getCollectionUsage();
+                    if (usage != null) {
+                        used += usage.getUsed();
+                    }
+                }
+                long percent = used * 100 / Runtime.getRuntime().maxMemory();
+                if (percent >= config.getMaxHeapUsage()) {
+                    return "heap " + percent + "% used after GC";
+                }
+            }
+
+            if (config.getMaxLoadPerCore() > 0) {
+                double load = os.getSystemLoadAverage() / processors;
+                if (load > config.getMaxLoadPerCore()) {
+                    return String.format("load %.2f per core", load);
+                }
+            }
+            return null;
+        }
+
+        private int connectionCount() {
+            int count = 0;
+            for (Worker worker : workers) {
+                count += worker.connectionCount.get();
+            }
+            return count;
+        }
+    }
+
+    private class Worker implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> mailbox = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger connectionCount = new AtomicInteger();
+        private final List<ClientInfo> dirty = new ArrayList<>();
+        private final ChatProtocolV2.Messages messages = new ChatProtocolV2.Messages();
+        // Общий для всех соединений воркера массив под writev
+        private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+        // Таймеры простоя соединений воркера; трогаются только из его потока
+        private final TimingWheel timers = new TimingWheel(TIMER_TICK_MILLIS, TIMER_BUCKETS);
+        // Время начала итерации цикла: по нему отмечается активность, без nanoTime на каждое чтение
+        private long loopTime = System.nanoTime();
+
+        Worker(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "chat-server-worker-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        boolean inWorkerThread() {
+            return Thread.currentThread() == thread;
+        }
+
+        void execute(Runnable task) {
+            mailbox.add(task);
+            selector.wakeup();
+        }
+
+        void markDirty(ClientInfo client) {
+            if (!client.dirty) {
+                client.dirty = true;
+                dirty.add(client);
+            }
+        }
+
+        void register(SocketChannel channel) {
+            connectionCount.incrementAndGet();
+            execute(() -> {
+                try {
+                    ClientInfo clientInfo = new ClientInfo(channel, this, new OutboundQueue(
+                            OUTBOUND_HIGH_WATERMARK, OUTBOUND_LOW_WATERMARK, slowConsumerPolicy, gather));
+                    clientInfo.frameHandler = (type, subType, payload) ->
+                            handleFrame(clientInfo, type, subType, payload);
+                    clientInfo.idleTimer = new TimingWheel.Timeout(() -> checkIdle(clientInfo));
+                    clientInfo.resumeTimer = new TimingWheel.Timeout(() -> resumeReading(clientInfo));
+                    long now = System.nanoTime();
+                    // Общий бюджет кадров при исчерпании останавливает чтение,
+                    // бюджеты рассылаемых сообщений отбрасывают лишние кадры
+                    clientInfo.frameBudget = newBucket(config.getFrameLimit(), now);
+                    clientInfo.groupBudget = newBucket(config.getGroupLimit(), now);
+                    clientInfo.roomBudget = newBucket(config.getRoomLimit(), now);
+                    clientInfo.privateBudget = newBucket(config.getPrivateLimit(), now);
+                    clientInfo.key = channel.register(selector, SelectionKey.OP_READ, clientInfo);
+                    clientInfo.lastActivity = loopTime;
+                    timers.schedule(clientInfo.idleTimer, idleTimeout);
+                } catch (IOException | RuntimeException e) {
+                    connectionCount.decrementAndGet();
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                        // Игнорируем
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    // Пока есть таймеры, селектор просыпается хотя бы раз за тик колеса
+                    selector.select(timers.isEmpty() ? 0 : timers.getTickMillis());
+                    long started = System.nanoTime();
+                    loopTime = started;
+                    runMailbox();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+
+                        if (key.isValid() && key.isWritable()) {
+                            flush((ClientInfo) key.attachment());
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            handleClientMessage(key);
+                        }
+                    }
+
+                    timers.advance();
+                    flushDirty();
+                    metrics.selectorLoop(System.nanoTime() - started);
+                } catch (IOException | RuntimeException e) {
+                    if (running) {
+                        log("Worker error: {}", e.getMessage());
+                    }
+                }
+            }
+        }
+
+        private void flushDirty() {
+            for (int i = 0; i < dirty.size(); i++) {
+                ClientInfo client = dirty.get(i);
+                client.dirty = false;
+                if (!client.closed && (client.key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+                    flush(client);
+                }
+            }
+            dirty.clear();
+        }
+
+        private void runMailbox() {
+            Runnable task;
+            while ((task = mailbox.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+
+    private static class ClientInfo {
+        final SocketChannel channel;
+        final Worker worker;
+        final String ipAddress;
+        final FrameDecoder decoder = new FrameDecoder();
+        final OutboundQueue outbound;
+        FrameDecoder.FrameHandler frameHandler;
+        SelectionKey key;
+        TimingWheel.Timeout idleTimer;
+        TimingWheel.Timeout resumeTimer;
+        // null — лимит отключён
+        TokenBucket frameBudget;
+        TokenBucket groupBudget;
+        TokenBucket roomBudget;
+        TokenBucket privateBudget;
+        // Пишет и читает только поток воркера
+        long lastActivity;
+        long pingSentAt;
+        // Версия и id фиксируются при регистрации, до публикации клиента в общих картах
+        int version = ChatProtocol.VERSION;
+        int id;
+        String nickname;
+        Set<String> joinedRooms;
+        InitSnapshot snapshot;
+        // Вход уже разослан агрегатором; пишет поток агрегатора, читают воркеры
+        volatile boolean announced;
+        boolean dirty;
+        boolean disconnecting;
+        boolean closed;
+
+        ClientInfo(SocketChannel channel, Worker worker, OutboundQueue outbound) {
+            this.channel = channel;
+            this.worker = worker;
+            this.outbound = outbound;
+            this.ipAddress = channel.socket().getInetAddress().getHostAddress();
+            this.joinedRooms = new HashSet<>();
+        }
+    }
+
+    // Каталог для одного клиента v2, читается страницами в потоке его воркера. Итераторы
+    // ConcurrentHashMap слабо согласованы: изменения после version могут как попасть в снимок,
+    // так и прийти только отдельными обновлениями
+    private static class InitSnapshot {
+        final long version;
+        final Iterator<ClientInfo> users;
+        final Iterator<ChatRoom> rooms;
+        final List<ClientInfo> pageUsers = new ArrayList<>();
+        final List<ChatRoom> pageRooms = new ArrayList<>();
+        boolean serverSent;
+        private ClientInfo nextUser;
+        private ChatRoom nextRoom;
+
+        InitSnapshot(long version, Iterator<ClientInfo> users, Iterator<ChatRoom> rooms) {
+            this.version = version;
+            this.users = users;
+            this.rooms = rooms;
+        }
+
+        ClientInfo peekUser() {
+            if (nextUser == null && users.hasNext()) {
+                nextUser = users.next();
+            }
+            return nextUser;
+        }
+
+        ClientInfo pollUser() {
+            ClientInfo user = peekUser();
+            nextUser = null;
+            return user;
+        }
+
+        ChatRoom peekRoom() {
+            if (nextRoom == null && rooms.hasNext()) {
+                nextRoom = rooms.next();
+            }
+            return nextRoom;
+        }
+
+        ChatRoom pollRoom() {
+            ChatRoom room = peekRoom();
+            nextRoom = null;
+            return room;
+        }
+
+        boolean isDone() {
+            return serverSent && peekUser() == null && peekRoom() == null;
+        }
+    }
+
+    private static class PresenceEvent {
+        final ClientInfo client;
+        final boolean joined;
+
+        PresenceEvent(ClientInfo client, boolean joined) {
+            this.client = client;
+            this.joined = joined;
+        }
+    }
+
+    private interface FrameEncoder {
+        SharedFrame encode(int version);
+    }
+
+    private static class ChatRoom {
+        private final int id;
+        private String name;
+        private boolean persistent;
+        // Последний участник ушёл, комната убирается из каталога и новых участников не принимает
+        private boolean closed;
+        // Участники хранятся ссылками на соединения: рассылка идёт без поиска по нику
+        private final Set<ClientInfo> members;
+        // Кольцо истории фиксированной ёмкости: добавление O(1) при любом размере
+        private final Entry[] history;
+        private int head;
+        private int size;
+
+        ChatRoom(int id, String name, boolean persistent, int historySize) {
+            this.id = id;
+            this.name = name;
+            this.persistent = persistent;
+            this.members = ConcurrentHashMap.newKeySet();
+            this.history = new Entry[historySize];
+        }
+
+        // Вход и закрытие опустевшей комнаты идут под одним замком, поэтому никто не войдёт
+        // в комнату, которая уже уходит из rooms
+        synchronized boolean addMember(ClientInfo client) {
+            if (closed) return false;
+            members.add(client);
+            return true;
+        }
+
+        // true — ушёл последний участник непостоянной комнаты, вызывающий должен её удалить
+        synchronized boolean removeMember(ClientInfo client) {
+            members.remove(client);
+            if (persistent || closed || !members.isEmpty()) return false;
+            closed = true;
+            return true;
+        }
+
+        boolean hasMember(ClientInfo client) {
+            return members.contains(client);
+        }
+
+        synchronized void addMessage(Entry entry) {
+            int tail = (head + size) % history.length;
+            if (size == history.length) {
+                history[head].release();
+                head = (head + 1) % history.length;
+            } else {
+                size++;
+            }
+            history[tail] = entry;
+        }
+
+        // Закодированный кадр записи для версии получателя; вызывающий обязан его освободить.
+        // Запись могла уже вытесниться из кольца — тогда кадр кодируется без кэширования
+        synchronized SharedFrame frame(Entry entry, int version) {
+            if (entry.evicted) {
+                return entry.encoder.encode(version);
+            }
+            return entry.frame(version).retain();
+        }
+
+        // Последние кадры истории, суммарно не больше budget байт, от старых к новым
+        synchronized SharedFrame[] replay(int version, long budget) {
+            int count = 0;
+            long bytes = 0;
+            while (count < size) {
+                Entry entry = history[(head + size - 1 - count) % history.length];
+                bytes += entry.frame(version).size();
+                if (bytes > budget) break;
+                count++;
+            }
+
+            SharedFrame[] frames = new SharedFrame[count];
+            for (int i = 0; i < count; i++) {
+                frames[i] = history[(head + size - count + i) % history.length].frame(version).retain();
+            }
+            return frames;
+        }
+
+        synchronized void clearHistory() {
+            for (int i = 0; i < size; i++) {
+                int index = (head + i) % history.length;
+                history[index].release();
+                history[index] = null;
+            }
+            head = 0;
+            size = 0;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        // Запись истории держит кадры для каждой версии протокола; недостающий
+        // кодируется при первом обращении. Доступ только под монитором комнаты
+        static class Entry {
+            private final FrameEncoder encoder;
+            private final SharedFrame[] frames = new SharedFrame[ChatProtocolV2.VERSION];
+            private boolean evicted;
+
+            Entry(FrameEncoder encoder) {
+                this.encoder = encoder;
+            }
+
+            SharedFrame frame(int version) {
+                SharedFrame frame = frames[version - 1];
+                if (frame == null) {
+                    frame = encoder.encode(version);
+                    frames[version - 1] = frame;
+                }
+                return frame;
+            }
+
+            void release() {
+                evicted = true;
+                for (int i = 0; i < frames.length; i++) {
+                    if (frames[i] != null) {
+                        frames[i].release();
+                        frames[i] = null;
+                    }
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        String serverName = args.length > 1 ? args[1] : "Admin";
+
+        ChatServerEngine engine = args.length > 2
+                ? new ChatServerEngine(Integer.parseInt(args[2]))
+                : new ChatServerEngine();
+        engine.addListener(new ChatServerListener() {
+            @Override
+            public void onLog(String message) {
+                System.out.println(message);
+            }
+
+            @Override
+            public void onChatMessage(String message) {
+                System.out.println(message);
+            }
+        });
+
+        Runtime.getRuntime().addShutdownHook(new Thread(engine::stop));
+        engine.start(port, serverName);
+        engine.awaitTermination();
+    }
+}
@@ -0,0 +1,41 @@
+package ru.itis.sockets.app.withSwing;
+
+import java.util.List;
+
+public interface ChatServerListener {
+
+    default void onServerStarted(int port) {
+    }
+
+    default void onServerStopped() {
+    }
+
+    // Строки журнала уже со временем. Вызывается из потока журнала, а не из потока событий
+    default void onLog(String message) {
+    }
+
+    default void onLogBatch(List<String> lines) {
+        lines.forEach(this::onLog);
+    }
+
+    default void onChatMessage(String message) {
+    }
+
+    default void onClientConnected(String nickname) {
+    }
+
+    default void onClientDisconnected(String nickname) {
+    }
+
+    // Пачка входов и выходов за одно окно агрегатора присутствия
+    default void onPresenceChanged(List<String> connected, List<String> disconnected) {
+        connected.forEach(this::onClientConnected);
+        disconnected.forEach(this::onClientDisconnected);
+    }
+
+    default void onRoomCreated(String roomName) {
+    }
+
+    default void onRoomRemoved(String roomName) {
+    }
+}
@@ -0,0 +1,121 @@
+package ru.itis.sockets.app.withSwing;
+
+import javax.swing.*;
+import java.awt.event.MouseEvent;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// Лента сообщений вместо JTextArea: хранит только последние capacity строк в кольце.
+// У JList заданы высота и ширина ячейки, поэтому он рисует лишь видимые строки и не
+// измеряет весь список при каждом добавлении. Память и время раскладки не растут с аптаймом
+public class ChatView extends JScrollPane {
+    public static final int DEFAULT_CAPACITY = Integer.getInteger("chat.viewLines", 1000);
+
+    private final LineModel model;
+    private final JList<String> list;
+
+    public ChatView() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ChatView(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+
+        model = new LineModel(capacity);
+        list = new JList<>(model) {
+            // Длинная строка обрезается по ширине окна, целиком она видна в подсказке
+            @Override
+            public boolean getScrollableTracksViewportWidth() {
+                return true;
+            }
+
+            @Override
+            public String getToolTipText(MouseEvent event) {
+                int index = locationToIndex(event.getPoint());
+                return index >= 0 && getCellBounds(index, index).contains(event.getPoint())
+                        ? model.getElementAt(index) : null;
+            }
+        };
+        list.setFixedCellHeight(list.getFontMetrics(list.getFont()).getHeight() + 2);
+        list.setFixedCellWidth(1);
+        ToolTipManager.sharedInstance().registerComponent(list);
+
+        setViewportView(list);
+    }
+
+    public void append(String line) {
+        appendAll(Collections.singletonList(line));
+    }
+
+    public void appendAll(List<String> lines) {
+        if (lines.isEmpty()) return;
+
+        // Прокручиваем вниз, только если пользователь и так смотрел в конец ленты
+        JScrollBar bar = getVerticalScrollBar();
+        boolean atBottom = bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - list.getFixedCellHeight();
+
+        model.addAll(lines);
+
+        if (atBottom) {
+            list.ensureIndexIsVisible(model.getSize() - 1);
+        }
+    }
+
+    public void clear() {
+        model.clear();
+    }
+
+    private static class LineModel extends AbstractListModel<String> {
+        private final String[] lines;
+        private int head;
+        private int size;
+
+        LineModel(int capacity) {
+            lines = new String[capacity];
+        }
+
+        @Override
+        public int getSize() {
+            return size;
+        }
+
+        @Override
+        public String getElementAt(int index) {
+            return lines[(head + index) % lines.length];
+        }
+
+        void addAll(List<String> batch) {
+            // Из пачки больше ёмкости остаются только последние строки
+            int from = Math.max(0, batch.size() - lines.length);
+            int added = batch.size() - from;
+            int removed = Math.max(0, size + added - lines.length);
+
+            for (int i = from; i < batch.size(); i++) {
+                lines[(head + size) % lines.length] = batch.get(i);
+                if (size < lines.length) {
+                    size++;
+                } else {
+                    head = (head + 1) % lines.length;
+                }
+            }
+
+            if (removed > 0) {
+                fireIntervalRemoved(this, 0, removed - 1);
+            }
+            fireIntervalAdded(this, size - added, size - 1);
+        }
+
+        void clear() {
+            if (size == 0) return;
+
+            int oldSize = size;
+            Arrays.fill(lines, null);
+            head = 0;
+            size = 0;
+            fireIntervalRemoved(this, 0, oldSize - 1);
+        }
+    }
+}
@@ -1,43 +1,100 @@
 package ru.itis.sockets.app.withSwing;
 
+import ru.itis.sockets.app.withSwing.utils.FrameDecoder;
+
 import javax.swing.*;
 import java.awt.*;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class NioChatClient extends JFrame {
+    private static final int MAX_GATHER = 64;
+    // EDT разбирает входящие события не чаще раза за кадр и не дольше 8 мс за раз
+    private static final long FRAME_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(16);
+    private static final long MAX_DRAIN_NANOS = TimeUnit.MILLISECONDS.toNanos(8);
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("HH:mm:ss").withZone(ZoneId.systemDefault());
+    // Сколько поток селектора дописывает очередь после отключения, прежде чем закрыть сокет
+    private static final long CLOSE_TIMEOUT_MILLIS = 1000;
+
     private SocketChannel socketChannel;
     private Selector selector;
+    private SelectionKey key;
     private Thread clientThread;
-    private boolean connected = false;
+    private volatile boolean connected = false;
+    // Отключение запрошено: поток селектора отправляет остаток очереди с DISCONNECT
+    // и сам закрывает канал и селектор
+    private volatile boolean closing;
     private boolean initialized = false;
 
+    // Каждый запрос рукопожатия уходит ровно один раз; поле меняет только поток селектора
+    private enum Handshake { CONNECTING, HELLO_SENT, INIT_SENT, READY }
+    private Handshake handshake;
+    // Свой id из CONNECT_SUCCESS, чтобы не показывать собственный вход; тоже только поток селектора
+    private int clientId;
+
     private String nickname;
     private String serverAddress;
     private int serverPort;
 
     private final Queue<ByteBuffer> sendQueue = new ConcurrentLinkedQueue<>();
+    // Недописанные кадры и массив под writev — только поток селектора
+    private final Deque<ByteBuffer> pending = new ArrayDeque<>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private final FrameDecoder decoder = new FrameDecoder();
+    private final FrameDecoder.FrameHandler frameHandler = this::processServerMessage;
+    private final ChatProtocolV2.Messages messages = new ChatProtocolV2.Messages();
+
+    // Поток селектора складывает обновления сюда, EDT забирает их пачкой.
+    // Строки для одной вкладки копятся в pendingAppends и добавляются в ленту одной пачкой
+    private final Queue<Runnable> uiEvents = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final Map<ChatView, List<String>> pendingAppends = new LinkedHashMap<>();
+    private final javax.swing.Timer drainTimer = new javax.swing.Timer(0, e -> drainEvents());
+    private long lastDrain = System.nanoTime() - FRAME_INTERVAL_NANOS;
 
     private JTextField nicknameField, serverField, portField;
     private JButton connectButton, disconnectButton, createRoomButton, joinRoomButton, sendButton;
-    private JTextArea globalChatArea;
+    private ChatView globalChat;
     private JTextField inputField;
     private JList<String> userList;
-    private DefaultListModel<String> userListModel;
+    private SortedListModel userListModel;
     private JList<String> roomList;
-    private DefaultListModel<String> roomListModel;
+    private SortedListModel roomListModel;
     private JTabbedPane chatTabs;
+    private JLabel messageLabel;
 
-    private final Map<String, JTextArea> roomChats = new HashMap<>();
+    // Лимиты сервера приходят в CONNECT_SUCCESS, до него ввод выключен. Читаются в EDT
+    private int maxClients;
+    private int maxMessageLength;
+    private int maxRoomNameLength;
+
+    private final Map<String, ChatView> roomChats = new HashMap<>();
     private final Map<String, String> currentRoom = new HashMap<>();
 
+    // Сервер передаёт id вместо имён; карты читаются и меняются только в EDT.
+    // Имена ушедших пользователей остаются, чтобы история комнат показывала авторов
+    private final Map<Integer, String> userNames = new HashMap<>();
+    private final Map<Integer, String> roomNames = new HashMap<>();
+    private final Map<String, Integer> roomIds = new HashMap<>();
+    // Версия снимка каталога, страницы которого сейчас приходят; читается в EDT
+    private long snapshotVersion = -1;
+
     public NioChatClient() {
+        drainTimer.setRepeats(false);
         initUI();
     }
 
@@ -78,15 +135,14 @@ public class NioChatClient extends JFrame {
         JPanel leftPanel = new JPanel(new GridLayout(2, 1));
 
         // Список пользователей
-        userListModel = new DefaultListModel<>();
+        userListModel = new SortedListModel();
         userList = new JList<>(userListModel);
         userList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
         JScrollPane userScroll = new JScrollPane(userList);
-        userScroll.setBorder(BorderFactory.createTitledBorder("Online Users (" +
-                ChatProtocol.MAX_CLIENTS + " max)"));
+        userScroll.setBorder(BorderFactory.createTitledBorder("Online Users"));
 
         // Список комнат
-        roomListModel = new DefaultListModel<>();
+        roomListModel = new SortedListModel();
         roomList = new JList<>(roomListModel);
         roomList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
         JScrollPane roomScroll = new JScrollPane(roomList);
@@ -119,11 +175,8 @@ public class NioChatClient extends JFrame {
         chatTabs = new JTabbedPane();
 
         // Global Chat вкладка
-        JPanel globalChatPanel = createChatPanel("Global");
-        globalChatArea = (JTextArea) ((JScrollPane) ((BorderLayout)
-                globalChatPanel.getLayout()).getLayoutComponent(BorderLayout.CENTER)).getViewport().getView();
-
-        chatTabs.addTab("Global Chat", globalChatPanel);
+        globalChat = new ChatView();
+        chatTabs.addTab("Global Chat", globalChat);
 
         mainSplit.setLeftComponent(leftPanel);
         mainSplit.setRightComponent(chatTabs);
@@ -145,7 +198,7 @@ public class NioChatClient extends JFrame {
             @Override
             public void insertString(int offs, String str, javax.swing.text.AttributeSet a)
                     throws javax.swing.text.BadLocationException {
-                if (getLength() + str.length() <= ChatProtocol.MAX_MESSAGE_LENGTH) {
+                if (getLength() + str.length() <= maxMessageLength) {
                     super.insertString(offs, str, a);
                 } else {
                     Toolkit.getDefaultToolkit().beep();
@@ -153,8 +206,8 @@ public class NioChatClient extends JFrame {
             }
         });
 
-        inputPanel.add(new JLabel("Message (" + ChatProtocol.MAX_MESSAGE_LENGTH + " chars max):"),
-                BorderLayout.WEST);
+        messageLabel = new JLabel("Message:");
+        inputPanel.add(messageLabel, BorderLayout.WEST);
         inputPanel.add(inputField, BorderLayout.CENTER);
         inputPanel.add(sendButton, BorderLayout.EAST);
 
@@ -163,21 +216,6 @@ public class NioChatClient extends JFrame {
         setLocationRelativeTo(null);
     }
 
-    private JPanel createChatPanel(String title) {
-        JPanel panel = new JPanel(new BorderLayout());
-        JTextArea chatArea = new JTextArea();
-        chatArea.setEditable(false);
-        JScrollPane scroll = new JScrollPane(chatArea);
-
-        panel.add(scroll, BorderLayout.CENTER);
-
-        if (title.equals("Global")) {
-            roomChats.put("Global", chatArea);
-        }
-
-        return panel;
-    }
-
     private void connectToServer() {
         nickname = nicknameField.getText().trim();
         serverAddress = serverField.getText().trim();
@@ -188,13 +226,6 @@ public class NioChatClient extends JFrame {
             return;
         }
 
-        if (nickname.length() > ChatProtocol.MAX_NICKNAME_LENGTH) {
-            JOptionPane.showMessageDialog(this,
-                    "Nickname too long! Max " + ChatProtocol.MAX_NICKNAME_LENGTH + " characters.",
-                    "Error", JOptionPane.ERROR_MESSAGE);
-            return;
-        }
-
         if (serverAddress.isEmpty()) {
             serverAddress = "localhost";
         }
@@ -210,18 +241,26 @@ public class NioChatClient extends JFrame {
             return;
         }
 
+        // Прошлое соединение ещё может дописывать очередь, а поля канала и селектора общие
+        awaitClientThread();
+
         try {
             cleanupBeforeConnect();
+            decoder.clear();
+            sendQueue.clear();
+            uiEvents.clear();
 
             socketChannel = SocketChannel.open();
             socketChannel.configureBlocking(false);
             socketChannel.connect(new InetSocketAddress(serverAddress, serverPort));
 
             selector = Selector.open();
-            socketChannel.register(selector, SelectionKey.OP_CONNECT | SelectionKey.OP_READ);
+            key = socketChannel.register(selector, SelectionKey.OP_CONNECT);
 
             connected = true;
+            closing = false;
             initialized = false;
+            handshake = Handshake.CONNECTING;
             clientThread = new Thread(this::runClient);
             clientThread.setDaemon(true);
             clientThread.start();
@@ -237,7 +276,7 @@ public class NioChatClient extends JFrame {
                 createRoomButton.setEnabled(false);
                 joinRoomButton.setEnabled(false);
 
-                globalChatArea.append("Connecting to " + serverAddress + ":" + serverPort + "...\n");
+                globalChat.append("Connecting to " + serverAddress + ":" + serverPort + "...");
             });
 
         } catch (IOException e) {
@@ -252,286 +291,446 @@ public class NioChatClient extends JFrame {
             roomListModel.clear();
             roomChats.clear();
             currentRoom.clear();
+            userNames.clear();
+            roomNames.clear();
+            roomIds.clear();
+            snapshotVersion = -1;
 
             while (chatTabs.getTabCount() > 1) {
                 chatTabs.removeTabAt(1);
             }
 
-            globalChatArea.setText("");
+            globalChat.clear();
         });
     }
 
     private void sendConnectRequest() {
-        ByteBuffer buffer = ChatProtocol.createMessage(
-                ChatProtocol.CONNECTION_MANAGEMENT,
-                ChatProtocol.CONNECT_REQUEST,
-                nickname
-        );
+        ByteBuffer buffer = ByteBuffer.allocate(ChatProtocolV2.helloSize(nickname));
+        ChatProtocolV2.putHello(buffer, ChatProtocolV2.VERSION, nickname);
+        buffer.flip();
         sendQueue.add(buffer);
-        wakeupSelector();
+        handshake = Handshake.HELLO_SENT;
     }
 
     private void runClient() {
-        while (connected) {
-            try {
-                selector.select(1000);
+        pending.clear();
+        long closeDeadline = 0;
+        try {
+            while (connected || closing) {
+                boolean finishing = closing;
+                if (finishing && closeDeadline == 0) {
+                    closeDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLOSE_TIMEOUT_MILLIS);
+                }
+                selector.select(finishing ? CLOSE_TIMEOUT_MILLIS : 0);
                 Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
 
                 while (keys.hasNext()) {
-                    SelectionKey key = keys.next();
+                    SelectionKey selected = keys.next();
                     keys.remove();
 
-                    if (!key.isValid()) continue;
+                    if (!selected.isValid()) continue;
 
-                    if (key.isConnectable()) {
+                    if (selected.isConnectable()) {
                         finishConnection();
-                    } else if (key.isReadable()) {
-                        handleServerMessage();
-                    } else if (key.isWritable()) {
-                        handleWrite();
+                    } else if (selected.isReadable()) {
+                        if (!finishing) {
+                            handleServerMessage();
+                        } else if (!discardInput()) {
+                            pending.clear();
+                        }
                     }
                 }
 
-                if (socketChannel != null && socketChannel.isConnected() && !initialized) {
-                    sendInitRequest();
+                // Пробуждение от queue() или OP_WRITE: всё накопленное уходит одним writev
+                if (handshake != Handshake.CONNECTING) {
+                    flushWrites();
                 }
 
-            } catch (IOException e) {
-                if (connected) {
-                    disconnectOnError("Connection lost");
+                if (finishing && (pending.isEmpty() || handshake == Handshake.CONNECTING
+                        || System.nanoTime() > closeDeadline)) {
+                    break;
                 }
             }
+        } catch (ClosedSelectorException e) {
+            // Селектор уже закрыт
+        } catch (IOException e) {
+            if (connected) {
+                connected = false;
+                disconnectOnError("Connection lost");
+            }
+        } finally {
+            closing = false;
+            closeChannel();
+        }
+    }
+
+    // После отключения входящее уже никому не нужно, но его надо вычитывать, иначе select()
+    // возвращается сразу. false — сервер закрыл соединение, дописывать очередь некуда
+    private boolean discardInput() throws IOException {
+        int bytesRead = decoder.read(socketChannel);
+        decoder.clear();
+        return bytesRead != -1;
+    }
+
+    private void closeChannel() {
+        try {
+            socketChannel.close();
+        } catch (IOException e) {
+            // Игнорируем
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // Игнорируем
+        }
+    }
+
+    private void awaitClientThread() {
+        if (clientThread == null) return;
+
+        try {
+            clientThread.join(CLOSE_TIMEOUT_MILLIS * 2);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
     private void finishConnection() throws IOException {
         if (socketChannel.finishConnect()) {
-            socketChannel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            key.interestOps(SelectionKey.OP_READ);
             sendConnectRequest();
         }
     }
 
+    // Вызывается из потока селектора по CONNECT_SUCCESS
     private void sendInitRequest() {
-        ByteBuffer buffer = ChatProtocol.createMessage(
+        if (handshake != Handshake.HELLO_SENT) return;
+
+        sendQueue.add(ChatProtocol.createMessage(
                 ChatProtocol.INITIALIZATION,
                 ChatProtocol.INIT_REQUEST,
                 ""
-        );
-        sendQueue.add(buffer);
-        wakeupSelector();
+        ));
+        handshake = Handshake.INIT_SENT;
     }
 
     private void handleServerMessage() throws IOException {
-        ByteBuffer buffer = ByteBuffer.allocate(4096);
-        int bytesRead = socketChannel.read(buffer);
+        int bytesRead = decoder.read(socketChannel);
 
         if (bytesRead == -1) {
+            connected = false;
             disconnectOnError("Server disconnected");
             return;
         }
 
         if (bytesRead > 0) {
-            buffer.flip();
-            while (buffer.hasRemaining()) {
-                buffer.mark();
-                String[] parsed = ChatProtocol.parseMessage(buffer);
+            decoder.decode(frameHandler);
+        }
+    }
 
-                if (parsed != null) {
-                    byte type = Byte.parseByte(parsed[0]);
-                    byte subType = Byte.parseByte(parsed[1]);
-                    String data = parsed[2];
+    // Поля кадра читаются здесь, в потоке селектора: буфер декодера живёт только до возврата.
+    // В EDT уходят уже готовые значения
+    private void processServerMessage(byte type, byte subType, ByteBuffer payload) {
+        Runnable update;
+        try {
+            update = decodeServerMessage(type, subType, payload);
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+            return;
+        }
 
-                    processServerMessage(type, subType, data);
-                } else {
-                    buffer.reset();
-                    break;
-                }
-            }
+        if (update == null) return;
+
+        post(update);
+    }
+
+    private void post(Runnable update) {
+        uiEvents.add(update);
+        if (drainScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this::scheduleDrain);
         }
     }
 
-    private void processServerMessage(byte type, byte subType, String data) {
-        SwingUtilities.invokeLater(() -> {
+    private void scheduleDrain() {
+        long wait = lastDrain + FRAME_INTERVAL_NANOS - System.nanoTime();
+        if (wait <= 0) {
+            drainEvents();
+        } else {
+            drainTimer.setInitialDelay((int) TimeUnit.NANOSECONDS.toMillis(wait) + 1);
+            drainTimer.restart();
+        }
+    }
+
+    private void drainEvents() {
+        long start = System.nanoTime();
+        lastDrain = start;
+
+        Runnable update;
+        while ((update = uiEvents.poll()) != null) {
             try {
-                switch (type) {
-                    case ChatProtocol.CONNECTION_MANAGEMENT:
-                        handleConnectionResponse(subType, data);
-                        break;
-                    case ChatProtocol.GROUP_MESSAGE:
-                        globalChatArea.append(data + "\n");
-                        break;
-                    case ChatProtocol.PRIVATE_MESSAGE:
-                        handlePrivateMessage(subType, data);
-                        break;
-                    case ChatProtocol.CLIENT_LIST_MANAGEMENT:
-                        handleClientList(subType, data);
-                        break;
-                    case ChatProtocol.ROOM_MANAGEMENT:
-                        handleRoomManagement(subType, data);
-                        break;
-                    case ChatProtocol.INITIALIZATION:
-                        handleInitialization(subType, data);
-                        break;
-                }
+                update.run();
             } catch (Exception e) {
                 e.printStackTrace();
             }
-        });
-    }
-
-    private void handleConnectionResponse(byte subType, String data) {
-        if (subType == ChatProtocol.CONNECT_SUCCESS) {
-            sendInitRequest();
+            if (System.nanoTime() - start > MAX_DRAIN_NANOS) break;
+        }
+        flushAppends();
 
-        } else if (subType == ChatProtocol.CONNECT_ERROR) {
-            JOptionPane.showMessageDialog(this, data, "Connection Error", JOptionPane.ERROR_MESSAGE);
-            disconnectFromServer();
+        // Остаток дождётся следующего кадра, порядок сохраняется очередью
+        drainScheduled.set(false);
+        if (!uiEvents.isEmpty() && drainScheduled.compareAndSet(false, true)) {
+            scheduleDrain();
         }
     }
 
-    private void handleInitialization(byte subType, String data) {
-        if (subType == ChatProtocol.INIT_DATA) {
-            String[] parts = data.split(";", 2);
-            if (parts.length >= 1) {
-                String usersData = parts[0];
-                updateUserList(usersData);
-            }
-            if (parts.length >= 2) {
-                String roomsData = parts[1];
-                updateRoomList(roomsData);
-            }
+    private void appendLine(ChatView view, String line) {
+        pendingAppends.computeIfAbsent(view, v -> new ArrayList<>()).add(line);
+    }
 
-        } else if (subType == ChatProtocol.INIT_COMPLETE) {
-            initialized = true;
-            SwingUtilities.invokeLater(() -> {
-                inputField.setEnabled(true);
-                sendButton.setEnabled(true);
-                createRoomButton.setEnabled(true);
-                joinRoomButton.setEnabled(roomListModel.getSize() > 0);
-            });
+    private void flushAppends() {
+        for (Map.Entry<ChatView, List<String>> entry : pendingAppends.entrySet()) {
+            entry.getKey().appendAll(entry.getValue());
         }
+        pendingAppends.clear();
     }
 
-    private void handleClientList(byte subType, String data) {
-        if (subType == ChatProtocol.FULL_LIST) {
-            updateUserList(data);
-        } else if (subType == ChatProtocol.ADD_CLIENT) {
-            if (!userListModel.contains(data)) {
-                userListModel.addElement(data);
+    private Runnable decodeServerMessage(byte type, byte subType, ByteBuffer payload) {
+        switch (type) {
+            case ChatProtocol.CONNECTION_MANAGEMENT:
+                if (subType == ChatProtocol.CONNECT_SUCCESS) {
+                    ChatProtocolV2.Welcome welcome = messages.welcome.wrap(payload);
+                    clientId = welcome.clientId();
+                    int clients = welcome.maxClients();
+                    int messageLength = welcome.maxMessageLength();
+                    int roomNameLength = welcome.maxRoomNameLength();
+                    sendInitRequest();
+                    return () -> applyLimits(clients, messageLength, roomNameLength);
+                } else if (subType == ChatProtocol.CONNECT_ERROR) {
+                    String reason = messages.text.wrap(payload).text();
+                    return () -> handleConnectionError(reason);
+                } else if (subType == ChatProtocol.PING) {
+                    sendQueue.add(ChatProtocol.createMessage(
+                            ChatProtocol.CONNECTION_MANAGEMENT, ChatProtocol.PONG, ""));
+                }
+                return null;
+
+            case ChatProtocol.GROUP_MESSAGE: {
+                ChatProtocolV2.ChatMessage message = messages.chatMessage.wrap(payload);
+                int senderId = message.senderId();
+                long timestamp = message.timestamp();
+                String text = message.text();
+                return () -> appendLine(globalChat, formatMessage(senderId, timestamp, text));
             }
-        } else if (subType == ChatProtocol.REMOVE_CLIENT) {
-            userListModel.removeElement(data);
+
+            case ChatProtocol.PRIVATE_MESSAGE:
+                if (subType == ChatProtocol.PRIVATE_MSG) {
+                    ChatProtocolV2.PrivateMessage message = messages.privateMessage.wrap(payload);
+                    int senderId = message.peerId();
+                    String text = message.text();
+                    return () -> appendLine(globalChat,
+                            "[Private from " + userName(senderId) + "]: " + text);
+                }
+                return null;
+
+            case ChatProtocol.CLIENT_LIST_MANAGEMENT:
+                if (subType == ChatProtocol.PRESENCE) {
+                    ChatProtocolV2.Presence presence = messages.presence.wrap(payload);
+                    long version = presence.version();
+                    long timestamp = presence.timestamp();
+                    ChatProtocolV2.EntryList list = presence.joined();
+                    EntrySnapshot joined = new EntrySnapshot(list);
+                    EntrySnapshot left = new EntrySnapshot(list.wrapNext());
+                    int self = clientId;
+                    return () -> applyPresence(version, timestamp, joined, left, self);
+                }
+                return null;
+
+            case ChatProtocol.ROOM_MANAGEMENT:
+                return decodeRoomMessage(subType, payload);
+
+            case ChatProtocol.INITIALIZATION:
+                if (subType == ChatProtocol.INIT_DATA) {
+                    ChatProtocolV2.InitPage page = messages.initPage.wrap(payload);
+                    long version = page.version();
+                    ChatProtocolV2.EntryList list = page.users();
+                    EntrySnapshot users = new EntrySnapshot(list);
+                    EntrySnapshot rooms = new EntrySnapshot(list.wrapNext());
+                    return () -> applyInitPage(version, users, rooms);
+                } else if (subType == ChatProtocol.INIT_COMPLETE && handshake == Handshake.INIT_SENT) {
+                    handshake = Handshake.READY;
+                    return this::handleInitComplete;
+                }
+                return null;
         }
+        return null;
     }
 
-    private void handleRoomManagement(byte subType, String data) {
-        String[] parts = data.split("\\|", 3);
-
+    private Runnable decodeRoomMessage(byte subType, ByteBuffer payload) {
         switch (subType) {
-            case ChatProtocol.CREATE_ROOM:
-                if (parts.length >= 2) {
-                    String roomName = parts[0];
-                    String creator = parts[1];
-                    boolean success = Boolean.parseBoolean(parts.length > 2 ? parts[2] : "true");
-
+            case ChatProtocol.CREATE_ROOM: {
+                ChatProtocolV2.RoomCreated created = messages.roomCreated.wrap(payload);
+                int roomId = created.roomId();
+                boolean success = created.success();
+                String roomName = created.name();
+                return () -> {
                     if (success) {
-                        addRoomToList(roomName);
+                        addRoomToList(roomId, roomName);
                     } else {
                         JOptionPane.showMessageDialog(this,
                                 "Failed to create room: " + roomName,
                                 "Error", JOptionPane.ERROR_MESSAGE);
                     }
-                }
-                break;
-
-            case ChatProtocol.ROOM_MESSAGE:
-                if (parts.length >= 3) {
-                    String roomName = parts[0];
-                    String sender = parts[1];
-                    String message = parts[2];
+                };
+            }
 
-                    JTextArea roomChat = roomChats.get(roomName);
-                    if (roomChat != null) {
-                        roomChat.append(getTimestamp() + " " + sender + ": " + message + "\n");
-                    } else {
-                        if (!roomChats.containsKey(roomName)) {
-                            joinRoom(roomName);
-                            roomChats.get(roomName).append(getTimestamp() + " " + sender + ": " + message + "\n");
-                        }
-                    }
-                }
-                break;
+            case ChatProtocol.ROOM_MESSAGE: {
+                ChatProtocolV2.RoomMessage message = messages.roomMessage.wrap(payload);
+                int roomId = message.roomId();
+                int senderId = message.senderId();
+                long timestamp = message.timestamp();
+                String text = message.text();
+                return () -> showRoomMessage(roomId, formatMessage(senderId, timestamp, text));
+            }
 
-            case ChatProtocol.ROOM_LIST:
-                updateRoomList(data);
-                break;
+            case ChatProtocol.ROOM_ADDED: {
+                ChatProtocolV2.Change change = messages.change.wrap(payload);
+                long version = change.version();
+                int roomId = change.id();
+                String roomName = change.name();
+                return () -> {
+                    if (version > snapshotVersion) addRoomToList(roomId, roomName);
+                };
+            }
 
-            case ChatProtocol.ROOM_USERS:
-                if (parts.length >= 2) {
-                    String roomName = parts[0];
-                    String users = parts[1];
-                    updateRoomUsers(roomName, users);
-                }
-                break;
+            case ChatProtocol.ROOM_REMOVED: {
+                ChatProtocolV2.Change change = messages.change.wrap(payload);
+                long version = change.version();
+                int roomId = change.id();
+                return () -> {
+                    if (version > snapshotVersion) removeRoomFromList(roomId);
+                };
+            }
         }
+        return null;
     }
 
-    private void handlePrivateMessage(byte subType, String data) {
-        String[] parts = data.split("\\|", 2);
-        String sender = parts[0];
+    private void applyLimits(int clients, int messageLength, int roomNameLength) {
+        maxClients = clients;
+        maxMessageLength = messageLength;
+        maxRoomNameLength = roomNameLength;
+        messageLabel.setText("Message (" + maxMessageLength + " chars max):");
+    }
 
-        if (subType == ChatProtocol.PRIVATE_MSG) {
-            String message = parts.length > 1 ? parts[1] : "";
-            globalChatArea.append("[Private from " + sender + "]: " + message + "\n");
+    private void handleConnectionError(String reason) {
+        JOptionPane.showMessageDialog(this, reason, "Connection Error", JOptionPane.ERROR_MESSAGE);
+        disconnectFromServer();
+    }
+
+    private void handleInitComplete() {
+        initialized = true;
+        inputField.setEnabled(true);
+        sendButton.setEnabled(true);
+        createRoomButton.setEnabled(true);
+        joinRoomButton.setEnabled(roomListModel.getSize() > 0);
+    }
+
+    private void showRoomMessage(int roomId, String line) {
+        String roomName = roomNames.get(roomId);
+        if (roomName == null) return;
+
+        ChatView roomChat = roomChats.get(roomName);
+        if (roomChat == null) {
+            joinRoom(roomName);
+            roomChat = roomChats.get(roomName);
         }
+        appendLine(roomChat, line);
     }
 
-    private void updateUserList(String listData) {
-        SwingUtilities.invokeLater(() -> {
-            userListModel.clear();
-            if (listData != null && !listData.isEmpty()) {
-                String[] users = listData.split(";");
-                for (String user : users) {
-                    if (!user.trim().isEmpty() && !userListModel.contains(user.trim())) {
-                        userListModel.addElement(user.trim());
-                    }
-                }
+    private String formatMessage(int senderId, long timestamp, String text) {
+        if (senderId == ChatProtocolV2.NO_SENDER) {
+            return formatTime(timestamp) + " " + text;
+        }
+        return formatTime(timestamp) + " " + userName(senderId) + ": " + text;
+    }
+
+    private String userName(int id) {
+        String name = userNames.get(id);
+        return name != null ? name : "#" + id;
+    }
+
+    // Изменения каталога идемпотентны: добавление уже известного и удаление неизвестного ничего не меняют.
+    // Изменения с версией не новее снимка в нём уже учтены и отбрасываются, строки о входе
+    // и выходе при этом всё равно показываются. Выходы применяются первыми и по id: переподключившийся
+    // ник выходит старым соединением и входит новым в одной пачке
+    private void applyPresence(long version, long timestamp, EntrySnapshot joined, EntrySnapshot left, int self) {
+        for (int i = 0; i < left.ids.length; i++) {
+            appendLine(globalChat, formatTime(timestamp) + " " + left.names[i] + " left the chat");
+        }
+        for (int i = 0; i < joined.ids.length; i++) {
+            if (joined.ids[i] != self) {
+                appendLine(globalChat, formatTime(timestamp) + " " + joined.names[i] + " joined the chat");
             }
+        }
+        if (version <= snapshotVersion) return;
 
-            int onlineCount = userListModel.getSize();
-            userList.setBorder(BorderFactory.createTitledBorder(
-                    "Online Users (" + onlineCount + "/" + ChatProtocol.MAX_CLIENTS + ")"));
-        });
+        for (int id : left.ids) {
+            String name = userNames.remove(id);
+            if (name != null) {
+                userListModel.remove(name);
+            }
+        }
+        for (int i = 0; i < joined.ids.length; i++) {
+            userNames.put(joined.ids[i], joined.names[i]);
+        }
+        userListModel.addAll(Arrays.asList(joined.names));
+        updateUserCount();
     }
 
-    private void updateRoomList(String listData) {
-        SwingUtilities.invokeLater(() -> {
+    private void updateUserCount() {
+        userList.setBorder(BorderFactory.createTitledBorder(
+                "Online Users (" + userListModel.getSize() + "/" + maxClients + ")"));
+    }
+
+    // Снимок приходит страницами и может догружаться уже после INIT_COMPLETE:
+    // первая страница новой версии очищает списки, остальные вливаются в них целиком
+    private void applyInitPage(long version, EntrySnapshot users, EntrySnapshot rooms) {
+        if (version != snapshotVersion) {
+            snapshotVersion = version;
+            userListModel.clear();
             roomListModel.clear();
-            if (listData != null && !listData.isEmpty()) {
-                String[] rooms = listData.split(";");
-                for (String room : rooms) {
-                    if (!room.trim().isEmpty() && !roomListModel.contains(room.trim())) {
-                        roomListModel.addElement(room.trim());
-                    }
-                }
-            }
-            joinRoomButton.setEnabled(roomListModel.getSize() > 0);
-        });
+            roomNames.clear();
+            roomIds.clear();
+        }
+
+        for (int i = 0; i < users.ids.length; i++) {
+            userNames.put(users.ids[i], users.names[i]);
+        }
+        userListModel.addAll(Arrays.asList(users.names));
+        updateUserCount();
+
+        for (int i = 0; i < rooms.ids.length; i++) {
+            roomNames.put(rooms.ids[i], rooms.names[i]);
+            roomIds.put(rooms.names[i], rooms.ids[i]);
+        }
+        roomListModel.addAll(Arrays.asList(rooms.names));
+        joinRoomButton.setEnabled(roomListModel.getSize() > 0);
     }
 
-    private void addRoomToList(String roomName) {
-        if (!roomListModel.contains(roomName)) {
-            roomListModel.addElement(roomName);
+    private void addRoomToList(int roomId, String roomName) {
+        roomNames.put(roomId, roomName);
+        roomIds.put(roomName, roomId);
+        if (roomListModel.add(roomName)) {
             joinRoomButton.setEnabled(true);
         }
     }
 
-    private void updateRoomUsers(String roomName, String users) {
-        JTextArea roomChat = roomChats.get(roomName);
-        if (roomChat != null) {
-            String[] userArray = users.split(",");
-            roomChat.append("[System] Users in room: " + String.join(", ", userArray) + "\n");
-        }
+    private void removeRoomFromList(int roomId) {
+        String roomName = roomNames.remove(roomId);
+        if (roomName == null) return;
+
+        roomIds.remove(roomName);
+        roomListModel.remove(roomName);
+        joinRoomButton.setEnabled(roomListModel.getSize() > 0);
     }
 
     private void createRoom() {
@@ -543,27 +742,22 @@ public class NioChatClient extends JFrame {
         }
 
         String roomName = JOptionPane.showInputDialog(this,
-                "Enter room name (max " + ChatProtocol.MAX_ROOM_NAME_LENGTH + " chars):",
+                "Enter room name (max " + maxRoomNameLength + " chars):",
                 "Create Room", JOptionPane.PLAIN_MESSAGE);
 
         if (roomName != null && !roomName.trim().isEmpty()) {
             roomName = roomName.trim();
 
-            if (roomName.length() > ChatProtocol.MAX_ROOM_NAME_LENGTH) {
+            if (roomName.length() > maxRoomNameLength) {
                 JOptionPane.showMessageDialog(this,
-                        "Room name too long! Max " + ChatProtocol.MAX_ROOM_NAME_LENGTH + " characters.",
+                        "Room name too long! Max " + maxRoomNameLength + " characters.",
                         "Error", JOptionPane.ERROR_MESSAGE);
                 return;
             }
 
-            ByteBuffer buffer = ChatProtocol.createMessage(
-                    ChatProtocol.ROOM_MANAGEMENT,
-                    ChatProtocol.CREATE_ROOM,
-                    roomName + "|" + nickname
-            );
-
-            sendQueue.add(buffer);
-            wakeupSelector();
+            ByteBuffer buffer = ByteBuffer.allocate(ChatProtocolV2.textSize(roomName));
+            ChatProtocolV2.putText(buffer, ChatProtocol.ROOM_MANAGEMENT, ChatProtocol.CREATE_ROOM, roomName);
+            queue(buffer);
         }
     }
 
@@ -591,26 +785,21 @@ public class NioChatClient extends JFrame {
             }
         }
 
-        JPanel roomPanel = createChatPanel(roomName);
-        JTextArea roomChatArea = (JTextArea) ((JScrollPane) ((BorderLayout)
-                roomPanel.getLayout()).getLayoutComponent(BorderLayout.CENTER)).getViewport().getView();
-
-        roomChats.put(roomName, roomChatArea);
+        ChatView roomChat = new ChatView();
+        roomChats.put(roomName, roomChat);
         currentRoom.put(roomName, roomName);
 
-        chatTabs.addTab(roomName, roomPanel);
+        chatTabs.addTab(roomName, roomChat);
         chatTabs.setSelectedIndex(chatTabs.getTabCount() - 1);
 
-        ByteBuffer buffer = ChatProtocol.createMessage(
-                ChatProtocol.ROOM_MANAGEMENT,
-                ChatProtocol.JOIN_ROOM,
-                roomName + "|" + nickname
-        );
-
-        sendQueue.add(buffer);
-        wakeupSelector();
+        Integer roomId = roomIds.get(roomName);
+        if (roomId != null) {
+            ByteBuffer buffer = ByteBuffer.allocate(ChatProtocolV2.idSize());
+            ChatProtocolV2.putId(buffer, ChatProtocol.ROOM_MANAGEMENT, ChatProtocol.JOIN_ROOM, roomId);
+            queue(buffer);
+        }
 
-        roomChatArea.append("Joined room: " + roomName + "\n");
+        roomChat.append("Joined room: " + roomName);
     }
 
     private void sendMessage() {
@@ -624,9 +813,9 @@ public class NioChatClient extends JFrame {
         String message = inputField.getText().trim();
         if (message.isEmpty()) return;
 
-        if (message.length() > ChatProtocol.MAX_MESSAGE_LENGTH) {
+        if (message.length() > maxMessageLength) {
             JOptionPane.showMessageDialog(this,
-                    "Message too long! Max " + ChatProtocol.MAX_MESSAGE_LENGTH + " characters.",
+                    "Message too long! Max " + maxMessageLength + " characters.",
                     "Error", JOptionPane.ERROR_MESSAGE);
             return;
         }
@@ -635,40 +824,59 @@ public class NioChatClient extends JFrame {
         String tabTitle = chatTabs.getTitleAt(tabIndex);
 
         if (tabTitle.equals("Global Chat")) {
-            ByteBuffer buffer = ChatProtocol.createMessage(
-                    ChatProtocol.GROUP_MESSAGE,
-                    (byte)0x01,
-                    message
-            );
-
-            sendQueue.add(buffer);
-            globalChatArea.append(getTimestamp() + " You: " + message + "\n");
+            ByteBuffer buffer = ByteBuffer.allocate(ChatProtocolV2.textSize(message));
+            ChatProtocolV2.putText(buffer, ChatProtocol.GROUP_MESSAGE, (byte)0x01, message);
+            queue(buffer);
+            globalChat.append(getTimestamp() + " You: " + message);
         } else {
             String roomName = tabTitle;
-            ByteBuffer buffer = ChatProtocol.createMessage(
-                    ChatProtocol.ROOM_MANAGEMENT,
-                    ChatProtocol.ROOM_MESSAGE,
-                    roomName + "|" + nickname + "|" + message
-            );
-
-            sendQueue.add(buffer);
+            Integer roomId = roomIds.get(roomName);
+            if (roomId != null) {
+                ByteBuffer buffer = ByteBuffer.allocate(ChatProtocolV2.roomPostSize(message));
+                ChatProtocolV2.putRoomPost(buffer, roomId, message);
+                queue(buffer);
+            }
 
-            JTextArea roomChat = roomChats.get(roomName);
+            ChatView roomChat = roomChats.get(roomName);
             if (roomChat != null) {
-                roomChat.append(getTimestamp() + " You: " + message + "\n");
+                roomChat.append(getTimestamp() + " You: " + message);
             }
         }
 
         inputField.setText("");
     }
 
-    private void handleWrite() throws IOException {
-        while (!sendQueue.isEmpty()) {
-            ByteBuffer buffer = sendQueue.poll();
-            while (buffer.hasRemaining()) {
-                socketChannel.write(buffer);
+    // OP_WRITE включён, только пока ядро не приняло всё: иначе селектор крутится вхолостую
+    private void flushWrites() throws IOException {
+        ByteBuffer buffer;
+        while ((buffer = sendQueue.poll()) != null) {
+            pending.add(buffer);
+        }
+
+        if (!pending.isEmpty()) {
+            int count = 0;
+            for (ByteBuffer frame : pending) {
+                if (count == gather.length) break;
+                gather[count++] = frame;
+            }
+            socketChannel.write(gather, 0, count);
+            Arrays.fill(gather, 0, count, null);
+
+            while (!pending.isEmpty() && !pending.peek().hasRemaining()) {
+                pending.poll();
             }
         }
+
+        int ops = pending.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+        if (key.interestOps() != ops) {
+            key.interestOps(ops);
+        }
+    }
+
+    private void queue(ByteBuffer buffer) {
+        buffer.flip();
+        sendQueue.add(buffer);
+        wakeupSelector();
     }
 
     private void wakeupSelector() {
@@ -677,30 +885,16 @@ public class NioChatClient extends JFrame {
         }
     }
 
+    // DISCONNECT встаёт в ту же очередь за уже отправленными сообщениями; канал и селектор
+    // закрывает поток селектора, когда очередь уйдёт в сокет
     private void disconnectFromServer() {
-        connected = false;
         initialized = false;
 
-        if (socketChannel != null && socketChannel.isOpen()) {
-            try {
-                ByteBuffer buffer = ChatProtocol.createMessage(
-                        ChatProtocol.CONNECTION_MANAGEMENT,
-                        ChatProtocol.DISCONNECT,
-                        ""
-                );
-                socketChannel.write(buffer);
-                socketChannel.close();
-            } catch (IOException e) {
-
-            }
-        }
-
-        if (selector != null && selector.isOpen()) {
-            try {
-                selector.close();
-            } catch (IOException e) {
-
-            }
+        if (connected) {
+            sendQueue.add(ChatProtocol.createMessage(ChatProtocol.CONNECTION_MANAGEMENT, ChatProtocol.DISCONNECT, ""));
+            closing = true;
+            connected = false;
+            wakeupSelector();
         }
 
         SwingUtilities.invokeLater(() -> {
@@ -716,15 +910,32 @@ public class NioChatClient extends JFrame {
         });
     }
 
+    // Через ту же очередь, чтобы отключение не обогнало уже принятые сообщения
     private void disconnectOnError(String message) {
-        SwingUtilities.invokeLater(() -> {
-            disconnectFromServer();
-        });
+        post(this::disconnectFromServer);
     }
 
     private String getTimestamp() {
-        return java.time.LocalTime.now().format(
-                java.time.format.DateTimeFormatter.ofPattern("HH:mm:ss"));
+        return formatTime(System.currentTimeMillis());
+    }
+
+    private String formatTime(long timestamp) {
+        return TIME_FORMAT.format(Instant.ofEpochMilli(timestamp));
+    }
+
+    // Копия списка id/имён из кадра: сам кадр нельзя передавать в EDT
+    private static class EntrySnapshot {
+        final int[] ids;
+        final String[] names;
+
+        EntrySnapshot(ChatProtocolV2.EntryList list) {
+            ids = new int[list.count()];
+            names = new String[list.count()];
+            for (int i = 0; list.next(); i++) {
+                ids[i] = list.id();
+                names[i] = list.name();
+            }
+        }
     }
 
     public static void main(String[] args) {
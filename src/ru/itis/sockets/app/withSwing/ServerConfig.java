@@ -0,0 +1,179 @@
+package ru.itis.sockets.app.withSwing;
+
+import ru.itis.sockets.app.withSwing.utils.TokenBucket;
+
+// Лимиты сервера задаются при запуске (-Dchat.*), клиенты v2 получают их в CONNECT_SUCCESS.
+// maxConnections, maxHeapUsage и maxLoadPerCore — бюджет admission control: сверх него
+// acceptor закрывает новое соединение сразу, ещё до регистрации в воркере.
+// Бюджеты соединения: chat.<name>Rate кадров в секунду и chat.<name>Burst про запас (по умолчанию
+// вдвое больше), ноль снимает лимит. Проверяются здесь же, чтобы ошибка в настройке
+// останавливала запуск, а не регистрацию каждого клиента
+public class ServerConfig {
+    public static final int DEFAULT_MAX_CLIENTS = 1000;
+    public static final int DEFAULT_MAX_ROOMS = 200;
+    public static final int DEFAULT_MAX_NICKNAME_LENGTH = 15;
+    public static final int DEFAULT_MAX_MESSAGE_LENGTH = 500;
+    public static final int DEFAULT_MAX_ROOM_NAME_LENGTH = 20;
+    public static final int DEFAULT_MAX_HEAP_USAGE = 90;
+    public static final int DEFAULT_FRAME_RATE = 50;
+    public static final int DEFAULT_GROUP_RATE = 5;
+    public static final int DEFAULT_ROOM_RATE = 10;
+    public static final int DEFAULT_PRIVATE_RATE = 10;
+
+    // Запас соединений сверх maxClients на тех, кто ещё не прошёл рукопожатие
+    private static final int HANDSHAKE_SLACK = 64;
+    // Кадр ROOM_MESSAGE v1 "room|sender|text" в худшем случае по 3 байта UTF-8 на символ
+    private static final int FRAME_OVERHEAD = 32;
+
+    private final int maxClients;
+    private final int maxRooms;
+    private final int maxNicknameLength;
+    private final int maxMessageLength;
+    private final int maxRoomNameLength;
+    private final int maxConnections;
+    private final int maxHeapUsage;
+    private final double maxLoadPerCore;
+    private final RateLimit frameLimit;
+    private final RateLimit groupLimit;
+    private final RateLimit roomLimit;
+    private final RateLimit privateLimit;
+
+    // null вместо лимита — без ограничения
+    public ServerConfig(int maxClients, int maxRooms, int maxNicknameLength, int maxMessageLength,
+                        int maxRoomNameLength, int maxConnections, int maxHeapUsage, double maxLoadPerCore,
+                        RateLimit frameLimit, RateLimit groupLimit, RateLimit roomLimit, RateLimit privateLimit) {
+        if (maxClients < 1 || maxRooms < 1 || maxNicknameLength < 1 || maxMessageLength < 1
+                || maxRoomNameLength < 1) {
+            throw new IllegalArgumentException("Limits must be positive");
+        }
+        if ((maxNicknameLength + maxMessageLength + maxRoomNameLength) * 3 + FRAME_OVERHEAD
+                > ChatProtocol.MAX_DATA_LENGTH) {
+            throw new IllegalArgumentException("Message limits do not fit into a frame of "
+                    + ChatProtocol.MAX_DATA_LENGTH + " bytes");
+        }
+        if (maxConnections < maxClients) {
+            throw new IllegalArgumentException("maxConnections must not be less than maxClients");
+        }
+        if (maxHeapUsage < 1 || maxHeapUsage > 100) {
+            throw new IllegalArgumentException("maxHeapUsage must be a percentage: " + maxHeapUsage);
+        }
+
+        this.maxClients = maxClients;
+        this.maxRooms = maxRooms;
+        this.maxNicknameLength = maxNicknameLength;
+        this.maxMessageLength = maxMessageLength;
+        this.maxRoomNameLength = maxRoomNameLength;
+        this.maxConnections = maxConnections;
+        this.maxHeapUsage = maxHeapUsage;
+        this.maxLoadPerCore = maxLoadPerCore;
+        this.frameLimit = frameLimit;
+        this.groupLimit = groupLimit;
+        this.roomLimit = roomLimit;
+        this.privateLimit = privateLimit;
+    }
+
+    public static ServerConfig fromSystemProperties() {
+        int maxClients = Integer.getInteger("chat.maxClients", DEFAULT_MAX_CLIENTS);
+        return new ServerConfig(
+                maxClients,
+                Integer.getInteger("chat.maxRooms", DEFAULT_MAX_ROOMS),
+                Integer.getInteger("chat.maxNicknameLength", DEFAULT_MAX_NICKNAME_LENGTH),
+                Integer.getInteger("chat.maxMessageLength", DEFAULT_MAX_MESSAGE_LENGTH),
+                Integer.getInteger("chat.maxRoomNameLength", DEFAULT_MAX_ROOM_NAME_LENGTH),
+                Integer.getInteger("chat.maxConnections", maxClients + Math.max(HANDSHAKE_SLACK, maxClients / 10)),
+                Integer.getInteger("chat.maxHeapUsage", DEFAULT_MAX_HEAP_USAGE),
+                Double.parseDouble(System.getProperty("chat.maxLoadPerCore", "0")),
+                RateLimit.fromProperties("frame", DEFAULT_FRAME_RATE),
+                RateLimit.fromProperties("group", DEFAULT_GROUP_RATE),
+                RateLimit.fromProperties("room", DEFAULT_ROOM_RATE),
+                RateLimit.fromProperties("private", DEFAULT_PRIVATE_RATE));
+    }
+
+    public int getMaxClients() {
+        return maxClients;
+    }
+
+    public int getMaxRooms() {
+        return maxRooms;
+    }
+
+    public int getMaxNicknameLength() {
+        return maxNicknameLength;
+    }
+
+    public int getMaxMessageLength() {
+        return maxMessageLength;
+    }
+
+    public int getMaxRoomNameLength() {
+        return maxRoomNameLength;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    // Процент кучи, занятой после последней сборки мусора
+    public int getMaxHeapUsage() {
+        return maxHeapUsage;
+    }
+
+    // 0 — не ограничивать по нагрузке
+    public double getMaxLoadPerCore() {
+        return maxLoadPerCore;
+    }
+
+    public RateLimit getFrameLimit() {
+        return frameLimit;
+    }
+
+    public RateLimit getGroupLimit() {
+        return groupLimit;
+    }
+
+    public RateLimit getRoomLimit() {
+        return roomLimit;
+    }
+
+    public RateLimit getPrivateLimit() {
+        return privateLimit;
+    }
+
+    public static final class RateLimit {
+        private final double rate;
+        private final int burst;
+
+        public RateLimit(double rate, int burst) {
+            if (!(rate > 0) || Double.isInfinite(rate)) {
+                throw new IllegalArgumentException("Rate must be a positive number: " + rate);
+            }
+            if (burst < 1) {
+                throw new IllegalArgumentException("Burst must be positive: " + burst);
+            }
+
+            this.rate = rate;
+            this.burst = burst;
+        }
+
+        // Ноль или отрицательная частота — лимита нет
+        static RateLimit fromProperties(String name, int defaultRate) {
+            double rate = Double.parseDouble(System.getProperty("chat." + name + "Rate", String.valueOf(defaultRate)));
+            if (rate <= 0) return null;
+
+            int burst = Integer.getInteger("chat." + name + "Burst", (int) Math.max(1, Math.ceil(rate * 2)));
+            return new RateLimit(rate, burst);
+        }
+
+        public double getRate() {
+            return rate;
+        }
+
+        public int getBurst() {
+            return burst;
+        }
+
+        public TokenBucket newBucket(long now) {
+            return new TokenBucket(rate, burst, now);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package ru.itis.sockets.app.withSwing;
+
+import ru.itis.sockets.app.withSwing.utils.Histogram;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+// Счётчики пишутся из всех воркеров без блокировок и без выделения памяти:
+// LongAdder разносит инкременты по ячейкам, гистограммы — массивы атомарных счётчиков
+public class ServerMetrics implements ServerMetricsMXBean {
+    // Индекс — тип кадра ChatProtocol, неизвестные типы считаются в OTHER
+    private static final String[] TYPE_NAMES = {
+            "OTHER", "CONNECTION_MANAGEMENT", "GROUP_MESSAGE", "PRIVATE_MESSAGE",
+            "CLIENT_LIST_MANAGEMENT", "ROOM_MANAGEMENT", "INITIALIZATION"
+    };
+
+    private final IntSupplier connections;
+    private final LongAdder connects = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder[] messagesIn = adders(TYPE_NAMES.length);
+    private final LongAdder[] messagesOut = adders(TYPE_NAMES.length);
+    private final LongAdder[] rateLimited = adders(TYPE_NAMES.length);
+    private final LongAdder readPauses = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final Histogram selectorLoop = new Histogram();
+    private final Histogram outboundQueue = new Histogram();
+    private final Histogram fanOut = new Histogram();
+
+    public ServerMetrics(IntSupplier connections) {
+        this.connections = connections;
+    }
+
+    void connected() {
+        connects.increment();
+    }
+
+    void disconnected() {
+        disconnects.increment();
+    }
+
+    void rejected() {
+        rejected.increment();
+    }
+
+    void messageIn(byte type) {
+        messagesIn[typeIndex(type)].increment();
+    }
+
+    void messageOut(byte type) {
+        messagesOut[typeIndex(type)].increment();
+    }
+
+    void rateLimited(byte type) {
+        rateLimited[typeIndex(type)].increment();
+    }
+
+    void readPaused() {
+        readPauses.increment();
+    }
+
+    void bytesRead(long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    void bytesWritten(long bytes) {
+        bytesWritten.add(bytes);
+    }
+
+    void selectorLoop(long nanos) {
+        selectorLoop.record(nanos);
+    }
+
+    void outboundQueue(long bytes) {
+        outboundQueue.record(bytes);
+    }
+
+    void fanOut(int recipients) {
+        fanOut.record(recipients);
+    }
+
+    @Override
+    public int getConnections() {
+        return connections.getAsInt();
+    }
+
+    @Override
+    public long getConnects() {
+        return connects.sum();
+    }
+
+    @Override
+    public long getDisconnects() {
+        return disconnects.sum();
+    }
+
+    @Override
+    public long getRejectedConnections() {
+        return rejected.sum();
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return sum(messagesIn);
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return sum(messagesOut);
+    }
+
+    @Override
+    public Map<String, Long> getMessagesInByType() {
+        return byType(messagesIn);
+    }
+
+    @Override
+    public Map<String, Long> getMessagesOutByType() {
+        return byType(messagesOut);
+    }
+
+    @Override
+    public Map<String, Long> getRateLimitedByType() {
+        return byType(rateLimited);
+    }
+
+    @Override
+    public long getReadPauses() {
+        return readPauses.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public Histogram.Snapshot getSelectorLoopNanos() {
+        return selectorLoop.snapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getOutboundQueueBytes() {
+        return outboundQueue.snapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getBroadcastFanOut() {
+        return fanOut.snapshot();
+    }
+
+    @Override
+    public void resetHistograms() {
+        selectorLoop.reset();
+        outboundQueue.reset();
+        fanOut.reset();
+    }
+
+    private static int typeIndex(byte type) {
+        return type > 0 && type < TYPE_NAMES.length ? type : 0;
+    }
+
+    private static LongAdder[] adders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    private static long sum(LongAdder[] adders) {
+        long total = 0;
+        for (LongAdder adder : adders) {
+            total += adder.sum();
+        }
+        return total;
+    }
+
+    private static Map<String, Long> byType(LongAdder[] adders) {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (int i = 0; i < adders.length; i++) {
+            counts.put(TYPE_NAMES[i], adders[i].sum());
+        }
+        return counts;
+    }
+}
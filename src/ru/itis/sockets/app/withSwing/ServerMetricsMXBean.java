@@ -0,0 +1,46 @@
+package ru.itis.sockets.app.withSwing;
+
+import ru.itis.sockets.app.withSwing.utils.Histogram;
+
+import java.util.Map;
+
+// Метрики сервера в JMX (jconsole, VisualVM): ru.itis.sockets.app:type=ChatServer,port=<порт>.
+// Счётчики накопительные с момента создания движка, скорость считает сторона, которая их читает
+public interface ServerMetricsMXBean {
+    int getConnections();
+
+    long getConnects();
+
+    long getDisconnects();
+
+    long getRejectedConnections();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    Map<String, Long> getMessagesInByType();
+
+    Map<String, Long> getMessagesOutByType();
+
+    // Кадры, отброшенные лимитом своего типа
+    Map<String, Long> getRateLimitedByType();
+
+    // Сколько раз чтение соединения останавливалось, потому что кончился бюджет кадров
+    long getReadPauses();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    // Время одного оборота селектора воркера в наносекундах, без ожидания в select()
+    Histogram.Snapshot getSelectorLoopNanos();
+
+    // Очередь соединения в байтах перед каждой записью в сокет
+    Histogram.Snapshot getOutboundQueueBytes();
+
+    // Число получателей одной рассылки
+    Histogram.Snapshot getBroadcastFanOut();
+
+    void resetHistograms();
+}
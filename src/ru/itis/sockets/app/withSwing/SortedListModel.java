@@ -0,0 +1,112 @@
+package ru.itis.sockets.app.withSwing;
+
+import javax.swing.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+// Список пользователей или комнат вместо DefaultListModel: имена уникальны и хранятся
+// отсортированными, поэтому поиск двоичный, а добавление и удаление сообщают JList
+// об одной строке. Поиск стоит O(log n) вместо прохода по списку, сама вставка или удаление —
+// сдвиг хвоста массива, O(n), но одним System.arraycopy без сравнений
+public class SortedListModel extends AbstractListModel<String> {
+    private static final Comparator<String> ORDER =
+            String.CASE_INSENSITIVE_ORDER.thenComparing(Comparator.naturalOrder());
+    private static final int SMALL_BATCH = 16;
+
+    private List<String> items = new ArrayList<>();
+
+    @Override
+    public int getSize() {
+        return items.size();
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return items.get(index);
+    }
+
+    public boolean contains(String item) {
+        return Collections.binarySearch(items, item, ORDER) >= 0;
+    }
+
+    public boolean add(String item) {
+        int index = Collections.binarySearch(items, item, ORDER);
+        if (index >= 0) return false;
+
+        index = -index - 1;
+        items.add(index, item);
+        fireIntervalAdded(this, index, index);
+        return true;
+    }
+
+    // Страница снимка вливается одним слиянием за O(n + k), а не k вставками.
+    // Несколько имён дешевле вставить по одному: JList перерисует только их строки.
+    // JList получает по событию на каждый отрезок вставленных подряд имён, чтобы сдвинуть
+    // выделение вместе со строками: иначе «Kick Selected» попадёт в другого пользователя
+    public void addAll(Collection<String> batch) {
+        if (batch.isEmpty()) return;
+        if (batch.size() < SMALL_BATCH) {
+            batch.forEach(this::add);
+            return;
+        }
+
+        List<String> sorted = new ArrayList<>(batch);
+        sorted.sort(ORDER);
+
+        List<String> merged = new ArrayList<>(items.size() + sorted.size());
+        int i = 0;
+        for (String item : sorted) {
+            while (i < items.size() && ORDER.compare(items.get(i), item) < 0) {
+                merged.add(items.get(i++));
+            }
+            boolean present = i < items.size() && ORDER.compare(items.get(i), item) == 0;
+            boolean repeated = !merged.isEmpty() && ORDER.compare(merged.get(merged.size() - 1), item) == 0;
+            if (!present && !repeated) {
+                merged.add(item);
+            }
+        }
+        while (i < items.size()) {
+            merged.add(items.get(i++));
+        }
+
+        List<String> old = items;
+        if (merged.size() == old.size()) return;
+
+        items = merged;
+        // Индексы в итоговом списке, по возрастанию: каждое событие учитывает предыдущие вставки
+        int kept = 0;
+        int index = 0;
+        while (index < merged.size()) {
+            if (kept < old.size() && merged.get(index) == old.get(kept)) {
+                kept++;
+                index++;
+                continue;
+            }
+            int from = index;
+            while (index < merged.size() && (kept >= old.size() || merged.get(index) != old.get(kept))) {
+                index++;
+            }
+            fireIntervalAdded(this, from, index - 1);
+        }
+    }
+
+    public boolean remove(String item) {
+        int index = Collections.binarySearch(items, item, ORDER);
+        if (index < 0) return false;
+
+        items.remove(index);
+        fireIntervalRemoved(this, index, index);
+        return true;
+    }
+
+    public void clear() {
+        if (items.isEmpty()) return;
+
+        int oldSize = items.size();
+        items = new ArrayList<>();
+        fireIntervalRemoved(this, 0, oldSize - 1);
+    }
+}
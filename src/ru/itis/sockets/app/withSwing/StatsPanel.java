@@ -0,0 +1,126 @@
+package ru.itis.sockets.app.withSwing;
+
+import ru.itis.sockets.app.withSwing.utils.Histogram;
+
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Вкладка статистики в окне администратора: раз в секунду читает ServerMetrics.
+// Для счётчиков показывает итог и скорость за последний интервал, для гистограмм — перцентили.
+// Пока вкладка не видна, таймер стоит
+public class StatsPanel extends JPanel {
+    private static final int REFRESH_MILLIS = 1000;
+
+    private final ServerMetrics metrics;
+    private final StatsModel model = new StatsModel();
+    private final Timer timer = new Timer(REFRESH_MILLIS, e -> refresh());
+    private final Map<String, Long> previous = new HashMap<>();
+    private long previousAt;
+
+    public StatsPanel(ServerMetrics metrics) {
+        super(new BorderLayout());
+        this.metrics = metrics;
+
+        JTable table = new JTable(model);
+        table.setFillsViewportHeight(true);
+        table.getColumnModel().getColumn(0).setPreferredWidth(260);
+        add(new JScrollPane(table), BorderLayout.CENTER);
+
+        JButton resetButton = new JButton("Reset Histograms");
+        resetButton.addActionListener(e -> {
+            metrics.resetHistograms();
+            refresh();
+        });
+        JPanel buttons = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        buttons.add(resetButton);
+        add(buttons, BorderLayout.SOUTH);
+
+        addHierarchyListener(e -> {
+            if (isShowing()) {
+                refresh();
+                timer.start();
+            } else {
+                timer.stop();
+            }
+        });
+    }
+
+    private void refresh() {
+        long now = System.nanoTime();
+        double seconds = previousAt == 0 ? 0 : (now - previousAt) / 1e9;
+        previousAt = now;
+
+        List<String[]> rows = new ArrayList<>();
+        rows.add(new String[]{"Connections", String.valueOf(metrics.getConnections()), ""});
+        counter(rows, "Connects", metrics.getConnects(), seconds);
+        counter(rows, "Disconnects", metrics.getDisconnects(), seconds);
+        counter(rows, "Rejected connections", metrics.getRejectedConnections(), seconds);
+        counter(rows, "Messages in", metrics.getMessagesIn(), seconds);
+        counter(rows, "Messages out", metrics.getMessagesOut(), seconds);
+        counter(rows, "Bytes read", metrics.getBytesRead(), seconds);
+        counter(rows, "Bytes written", metrics.getBytesWritten(), seconds);
+        metrics.getMessagesInByType().forEach((type, count) -> counter(rows, "In " + type, count, seconds));
+        metrics.getMessagesOutByType().forEach((type, count) -> counter(rows, "Out " + type, count, seconds));
+        counter(rows, "Read pauses", metrics.getReadPauses(), seconds);
+        metrics.getRateLimitedByType().forEach((type, count) -> counter(rows, "Rate-limited " + type, count, seconds));
+        histogram(rows, "Selector loop, µs", metrics.getSelectorLoopNanos(), 1000);
+        histogram(rows, "Outbound queue, bytes", metrics.getOutboundQueueBytes(), 1);
+        histogram(rows, "Broadcast fan-out", metrics.getBroadcastFanOut(), 1);
+
+        model.setRows(rows);
+    }
+
+    private void counter(List<String[]> rows, String name, long total, double seconds) {
+        Long last = previous.put(name, total);
+        String rate = last == null || seconds == 0 ? "" : String.format("%.1f/s", (total - last) / seconds);
+        rows.add(new String[]{name, String.valueOf(total), rate});
+    }
+
+    private static void histogram(List<String[]> rows, String name, Histogram.Snapshot snapshot, long unit) {
+        rows.add(new String[]{name, String.format("p50 %d  p99 %d  p99.9 %d  max %d",
+                snapshot.getP50() / unit, snapshot.getP99() / unit, snapshot.getP999() / unit, snapshot.getMax() / unit),
+                String.format("mean %.1f, n=%d", snapshot.getMean() / unit, snapshot.getCount())});
+    }
+
+    private static class StatsModel extends AbstractTableModel {
+        private static final String[] COLUMNS = {"Metric", "Total", "Rate"};
+
+        private List<String[]> rows = new ArrayList<>();
+
+        void setRows(List<String[]> rows) {
+            boolean sameShape = rows.size() == this.rows.size();
+            this.rows = rows;
+            // Число строк не меняется, поэтому выделение и прокрутка таблицы сохраняются
+            if (sameShape) {
+                fireTableRowsUpdated(0, rows.size() - 1);
+            } else {
+                fireTableDataChanged();
+            }
+        }
+
+        @Override
+        public int getRowCount() {
+            return rows.size();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return COLUMNS.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return COLUMNS[column];
+        }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            return rows.get(row)[column];
+        }
+    }
+}
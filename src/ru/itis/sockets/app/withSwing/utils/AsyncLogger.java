@@ -0,0 +1,291 @@
+package ru.itis.sockets.app.withSwing.utils;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+// Асинхронный журнал сервера. Потоки ввода-вывода только занимают слот в заранее выделенном кольце
+// и кладут в него время, шаблон и до трёх аргументов — без форматирования, строк и блокировок.
+// Фоновый поток собирает строки ("{}" в шаблоне заменяется аргументами), дописывает их в файл
+// с ротацией по размеру и отдаёт получателю пачками. Если кольцо заполнено, запись теряется
+// и учитывается в счётчике, поток ввода-вывода никогда не ждёт. Без записей фоновый поток спит,
+// будит его тот, кто опубликовал запись, пока он засыпал
+public class AsyncLogger {
+    public static final int DEFAULT_CAPACITY = 8192;
+    public static final long DEFAULT_FILE_SIZE = 10L * 1024 * 1024;
+    public static final int DEFAULT_FILES = 5;
+
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("HH:mm:ss").withZone(ZoneId.systemDefault());
+    private static final long CLOSE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    private static final int MAX_BATCH = 1024;
+    private static final int ARGS = 3;
+
+    private final int mask;
+    private final long[] times;
+    private final String[] templates;
+    private final Object[] args;
+    private final byte[] arities;
+    // Слот i готов к чтению, когда published[i] == seq + 1
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long consumed;
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean sleeping;
+    private volatile boolean closing;
+
+    private final Path file;
+    private final long maxFileSize;
+    private final int maxFiles;
+    private final Consumer<List<String>> sink;
+    private BufferedWriter writer;
+    private boolean fileFailed;
+    private long fileSize;
+    private volatile Thread thread;
+
+    // file == null — только получатель, без файла
+    public AsyncLogger(int capacity, Path file, long maxFileSize, int maxFiles, Consumer<List<String>> sink) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        if (maxFiles < 1) {
+            throw new IllegalArgumentException("At least one log file must be kept: " + maxFiles);
+        }
+
+        this.mask = capacity - 1;
+        this.times = new long[capacity];
+        this.templates = new String[capacity];
+        this.args = new Object[capacity * ARGS];
+        this.arities = new byte[capacity];
+        this.published = new AtomicLongArray(capacity);
+        this.file = file;
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+        this.sink = sink;
+    }
+
+    public synchronized void start() {
+        if (thread != null) return;
+
+        thread = new Thread(this::run, "chat-server-log");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Дописывает всё, что уже опубликовано, и закрывает файл. После close() журнал можно
+    // снова запустить через start()
+    public synchronized void close() {
+        Thread current = thread;
+        if (current == null) return;
+
+        closing = true;
+        LockSupport.unpark(current);
+        try {
+            current.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+        closing = false;
+    }
+
+    public void log(String message) {
+        append(0, message, null, null, null);
+    }
+
+    // Аргументы хранятся ссылками до форматирования, поэтому они должны быть неизменяемыми.
+    // Маленькие int (версия, счётчики до 127) упаковываются без выделения памяти
+    public void log(String template, Object arg) {
+        append(1, template, arg, null, null);
+    }
+
+    public void log(String template, Object first, Object second) {
+        append(2, template, first, second, null);
+    }
+
+    public void log(String template, Object first, Object second, Object third) {
+        append(3, template, first, second, third);
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    private void append(int arity, String template, Object first, Object second, Object third) {
+        long seq;
+        do {
+            seq = claimed.get();
+            if (seq - consumed > mask) {
+                dropped.increment();
+                return;
+            }
+        } while (!claimed.compareAndSet(seq, seq + 1));
+
+        int slot = (int) seq & mask;
+        times[slot] = System.currentTimeMillis();
+        templates[slot] = template;
+        arities[slot] = (byte) arity;
+        args[slot * ARGS] = first;
+        args[slot * ARGS + 1] = second;
+        args[slot * ARGS + 2] = third;
+        // Полный барьер, а не lazySet: иначе чтение sleeping могло бы обогнать публикацию,
+        // и засыпающий поток журнала не увидел бы ни записи, ни побудки
+        published.set(slot, seq + 1);
+        if (sleeping) {
+            sleeping = false;
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void run() {
+        List<String> batch = new ArrayList<>();
+        long reportedDrops = 0;
+
+        while (true) {
+            long seq = consumed;
+            while (batch.size() < MAX_BATCH) {
+                int slot = (int) seq & mask;
+                if (published.get(slot) != seq + 1) break;
+
+                batch.add(format(slot));
+                templates[slot] = null;
+                args[slot * ARGS] = null;
+                args[slot * ARGS + 1] = null;
+                args[slot * ARGS + 2] = null;
+                consumed = ++seq;
+            }
+
+            long drops = dropped.sum();
+            if (drops > reportedDrops) {
+                batch.add(TIME_FORMAT.format(Instant.now()) + " Log buffer full: "
+                        + (drops - reportedDrops) + " records dropped");
+                reportedDrops = drops;
+            }
+
+            if (batch.isEmpty()) {
+                if (closing) break;
+
+                // Сначала объявить сон, потом перепроверить кольцо: запись, опубликованная
+                // между проверками, либо найдётся здесь, либо её автор разбудит поток
+                sleeping = true;
+                if (published.get((int) seq & mask) != seq + 1 && !closing) {
+                    LockSupport.park(this);
+                }
+                sleeping = false;
+                continue;
+            }
+
+            write(batch);
+            try {
+                sink.accept(batch);
+            } catch (RuntimeException e) {
+                // Получатель не должен останавливать журнал
+            }
+            batch = new ArrayList<>();
+        }
+
+        if (writer != null) {
+            closeWriter();
+            writer = null;
+        }
+    }
+
+    private String format(int slot) {
+        StringBuilder line = new StringBuilder(64);
+        TIME_FORMAT.formatTo(Instant.ofEpochMilli(times[slot]), line);
+        line.append(' ');
+
+        String template = templates[slot];
+        int from = 0;
+        for (int arg = 0; arg < arities[slot]; arg++) {
+            int at = template.indexOf("{}", from);
+            if (at < 0) break;
+            line.append(template, from, at).append(args[slot * ARGS + arg]);
+            from = at + 2;
+        }
+        return line.append(template, from, template.length()).toString();
+    }
+
+    // Размер считается в символах: журнал почти целиком ASCII, точность до байта не нужна
+    private void write(List<String> lines) {
+        if (file == null || fileFailed) return;
+
+        try {
+            if (writer == null) {
+                open();
+            }
+            for (String line : lines) {
+                writer.write(line);
+                writer.newLine();
+                fileSize += line.length() + 1;
+            }
+            writer.flush();
+
+            if (fileSize >= maxFileSize) {
+                roll();
+            }
+        } catch (IOException e) {
+            lines.add("Log file " + file + " is not writable, file logging stopped: " + e.getMessage());
+            fileFailed = true;
+            if (writer != null) {
+                closeWriter();
+                writer = null;
+            }
+        }
+    }
+
+    // chat-server.log -> .1 -> .2 ... самый старый файл удаляется
+    private void roll() throws IOException {
+        closeWriter();
+        Files.deleteIfExists(rolled(maxFiles - 1));
+        for (int i = maxFiles - 2; i >= 1; i--) {
+            Path source = rolled(i);
+            if (Files.exists(source)) {
+                Files.move(source, rolled(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (maxFiles > 1) {
+            Files.move(file, rolled(1), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(file);
+        }
+        open();
+    }
+
+    private void open() throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        fileSize = Files.size(file);
+    }
+
+    private void closeWriter() {
+        try {
+            writer.close();
+        } catch (IOException e) {
+            // Файл уже не нужен
+        }
+    }
+
+    private Path rolled(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+}
@@ -0,0 +1,109 @@
+package ru.itis.sockets.app.withSwing.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Копит события и отдаёт их пачкой не чаще раза за окно. Первое событие после затишья
+// длиннее окна уходит сразу, так что в спокойном режиме задержки нет, а во время всплеска
+// всё, что пришло за окно, собирается в одну пачку. Получатель вызывается в потоке батчера.
+// После stop() накопленное выбрасывается и новые события не принимаются до следующего start()
+public class EventBatcher<T> {
+    private final long windowNanos;
+    private final Consumer<List<T>> flusher;
+    private final String threadName;
+    private List<T> pending = new ArrayList<>();
+    private long lastFlush;
+    private Thread thread;
+    private boolean stopped = true;
+
+    public EventBatcher(long windowMillis, Consumer<List<T>> flusher, String threadName) {
+        if (windowMillis < 0) {
+            throw new IllegalArgumentException("Window must not be negative: " + windowMillis);
+        }
+
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.flusher = flusher;
+        this.threadName = threadName;
+        this.lastFlush = System.nanoTime() - windowNanos;
+    }
+
+    public synchronized void start() {
+        if (thread != null) return;
+
+        stopped = false;
+        thread = new Thread(this::run, threadName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Дожидается пачки, которую получатель уже обрабатывает, чтобы после stop() он больше
+    // не вызывался
+    public void stop() {
+        Thread current;
+        synchronized (this) {
+            if (thread == null) return;
+
+            current = thread;
+            thread = null;
+            stopped = true;
+            pending.clear();
+            notifyAll();
+        }
+
+        if (current != Thread.currentThread()) {
+            try {
+                current.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public synchronized void add(T event) {
+        if (stopped) return;
+
+        pending.add(event);
+        if (pending.size() == 1) {
+            notifyAll();
+        }
+    }
+
+    private void run() {
+        while (true) {
+            List<T> batch;
+            try {
+                batch = awaitBatch();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (batch == null) return;
+
+            try {
+                flusher.accept(batch);
+            } catch (RuntimeException e) {
+                // Получатель не должен останавливать батчер
+            }
+        }
+    }
+
+    // null — батчер остановлен
+    private synchronized List<T> awaitBatch() throws InterruptedException {
+        while (pending.isEmpty() && !stopped) {
+            wait();
+        }
+
+        // Пока окно с прошлой отправки не истекло, события продолжают копиться
+        long remaining;
+        while (!stopped && (remaining = lastFlush + windowNanos - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        if (stopped) return null;
+
+        List<T> batch = pending;
+        pending = new ArrayList<>();
+        lastFlush = System.nanoTime();
+        return batch;
+    }
+}
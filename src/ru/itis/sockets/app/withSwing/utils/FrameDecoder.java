@@ -0,0 +1,115 @@
+package ru.itis.sockets.app.withSwing.utils;
+
+import ru.itis.sockets.app.withSwing.ChatProtocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+// Накопительный декодер кадров одного соединения: хвост неполного кадра
+// остаётся в буфере до следующего чтения, буфер переиспользуется
+public class FrameDecoder {
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private final int initialCapacity;
+    private ByteBuffer buffer;
+    private boolean paused;
+
+    public FrameDecoder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public FrameDecoder(int initialCapacity) {
+        if (initialCapacity < ChatProtocol.HEADER_SIZE) {
+            throw new IllegalArgumentException("Capacity is too small: " + initialCapacity);
+        }
+        this.initialCapacity = initialCapacity;
+        this.buffer = ByteBuffer.allocate(initialCapacity);
+    }
+
+    public int read(ReadableByteChannel channel) throws IOException {
+        return channel.read(buffer);
+    }
+
+    // Отдаёт обработчику все полные кадры, накопленные в буфере.
+    // payload валиден только внутри вызова onFrame: position..limit — данные кадра
+    // pause() из onFrame останавливает разбор: текущий кадр не считается обработанным
+    // и вместе с остальными ждёт в буфере следующего decode()
+    public int decode(FrameHandler handler) {
+        buffer.flip();
+        int frames = 0;
+        int required = 0;
+
+        try {
+            while (buffer.remaining() >= ChatProtocol.HEADER_SIZE) {
+                int start = buffer.position();
+                byte type = buffer.get(start);
+                byte subType = buffer.get(start + 1);
+                int length = buffer.getShort(start + 2) & 0xFFFF;
+                int frameSize = ChatProtocol.HEADER_SIZE + length;
+
+                if (buffer.remaining() < frameSize) {
+                    required = frameSize;
+                    break;
+                }
+
+                int limit = buffer.limit();
+                int end = start + frameSize;
+                buffer.limit(end).position(start + ChatProtocol.HEADER_SIZE);
+                try {
+                    handler.onFrame(type, subType, buffer);
+                } finally {
+                    buffer.limit(limit).position(paused ? start : end);
+                }
+                if (paused) {
+                    paused = false;
+                    break;
+                }
+                frames++;
+            }
+        } finally {
+            buffer.compact();
+        }
+
+        if (required > buffer.capacity()) {
+            grow(required);
+        } else if (buffer.position() == 0 && buffer.capacity() > initialCapacity) {
+            buffer = ByteBuffer.allocate(initialCapacity);
+        }
+
+        return frames;
+    }
+
+    public void pause() {
+        paused = true;
+    }
+
+    public int buffered() {
+        return buffer.position();
+    }
+
+    public void clear() {
+        if (buffer.capacity() > initialCapacity) {
+            buffer = ByteBuffer.allocate(initialCapacity);
+        } else {
+            buffer.clear();
+        }
+    }
+
+    private void grow(int required) {
+        int capacity = buffer.capacity();
+        while (capacity < required) {
+            capacity <<= 1;
+        }
+        capacity = Math.min(capacity, ChatProtocol.HEADER_SIZE + ChatProtocol.MAX_DATA_LENGTH);
+
+        ByteBuffer grown = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+    }
+
+    public interface FrameHandler {
+        void onFrame(byte type, byte subType, ByteBuffer payload);
+    }
+}
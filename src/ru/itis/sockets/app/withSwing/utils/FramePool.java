@@ -0,0 +1,104 @@
+package ru.itis.sockets.app.withSwing.utils;
+
+import ru.itis.sockets.app.utils.Utf8;
+import ru.itis.sockets.app.withSwing.ChatProtocol;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Пул direct-буферов для исходящих кадров, разбитый по классам размеров.
+// Direct-память пишется в сокет без промежуточного копирования. В каждом классе хранится
+// не больше maxPooledPerClass кадров и не больше maxPooledBytesPerClass байт, поэтому
+// крупные классы держат мало буферов и пул не выедает MaxDirectMemorySize
+public class FramePool {
+    private static final int[] SIZE_CLASSES = {
+            256, 1024, 4096, 16384, ChatProtocol.HEADER_SIZE + ChatProtocol.MAX_DATA_LENGTH
+    };
+
+    private final SizeClass[] classes;
+    private final LongAdder allocated = new LongAdder();
+    private final LongAdder reused = new LongAdder();
+
+    public FramePool(int maxPooledPerClass, long maxPooledBytesPerClass) {
+        this.classes = new SizeClass[SIZE_CLASSES.length];
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            int size = SIZE_CLASSES[i];
+            classes[i] = new SizeClass(size, (int) Math.min(maxPooledPerClass, maxPooledBytesPerClass / size));
+        }
+    }
+
+    public SharedFrame encode(byte type, byte subType, String data) {
+        if (data == null) {
+            data = "";
+        }
+
+        int length = Utf8.length(data);
+        SharedFrame frame = acquire(ChatProtocol.HEADER_SIZE + length);
+        ByteBuffer buffer = frame.prepare();
+        ChatProtocol.encode(buffer, type, subType, data, length);
+        buffer.flip();
+        return frame;
+    }
+
+    // Кадр под произвольное содержимое: заполнить buffer() и вызвать seal()
+    public SharedFrame allocate(int frameSize) {
+        SharedFrame frame = acquire(frameSize);
+        frame.prepare();
+        return frame;
+    }
+
+    private SharedFrame acquire(int frameSize) {
+        SizeClass sizeClass = classes[sizeClass(frameSize)];
+
+        SharedFrame frame = sizeClass.free.poll();
+        if (frame != null) {
+            sizeClass.count.decrementAndGet();
+            reused.increment();
+            return frame;
+        }
+
+        allocated.increment();
+        return new SharedFrame(this, ByteBuffer.allocateDirect(sizeClass.size));
+    }
+
+    void recycle(SharedFrame frame) {
+        SizeClass sizeClass = classes[sizeClass(frame.capacity())];
+        if (sizeClass.count.incrementAndGet() <= sizeClass.maxPooled) {
+            sizeClass.free.add(frame);
+        } else {
+            sizeClass.count.decrementAndGet();
+        }
+    }
+
+    public long getAllocated() {
+        return allocated.sum();
+    }
+
+    public long getReused() {
+        return reused.sum();
+    }
+
+    private static int sizeClass(int frameSize) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (frameSize <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Frame too large: " + frameSize + " bytes");
+    }
+
+    private static class SizeClass {
+        final int size;
+        final int maxPooled;
+        final Queue<SharedFrame> free = new ConcurrentLinkedQueue<>();
+        final AtomicInteger count = new AtomicInteger();
+
+        SizeClass(int size, int maxPooled) {
+            this.size = size;
+            this.maxPooled = maxPooled;
+        }
+    }
+}
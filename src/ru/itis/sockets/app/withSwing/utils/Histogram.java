@@ -0,0 +1,153 @@
+package ru.itis.sockets.app.withSwing.utils;
+
+import javax.management.ConstructorParameters;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Лог-линейная гистограмма, как у HdrHistogram: каждая степень двойки делится на 64 корзины,
+// поэтому ошибка перцентиля меньше 2% при постоянной памяти. Значения в любых единицах
+// (наносекунды, байты, штуки). record() не выделяет память и безопасен из любых потоков
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Всё, что больше 2^40, попадает в последнюю корзину (для наносекунд это ~18 минут)
+    private static final int MAX_EXPONENT = 40;
+
+    private final AtomicLongArray counts = new AtomicLongArray((MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(index(Math.min(value, (1L << MAX_EXPONENT) - 1)));
+        count.increment();
+        sum.add(value);
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    public void add(Histogram other) {
+        for (int i = 0; i < counts.length(); i++) {
+            long value = other.counts.get(i);
+            if (value != 0) {
+                counts.addAndGet(i, value);
+            }
+        }
+        count.add(other.count.sum());
+        sum.add(other.sum.sum());
+        max.accumulateAndGet(other.max.get(), Math::max);
+    }
+
+    // Записи, идущие во время сброса, могут попасть в старый или в новый интервал
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public double mean() {
+        long total = count.sum();
+        return total == 0 ? 0 : (double) sum.sum() / total;
+    }
+
+    // percentile от 0 до 100; возвращается середина корзины, в которую он попал
+    public long percentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(middle(i), max());
+            }
+        }
+        return max();
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(count(), mean(), percentile(50), percentile(99), percentile(99.9), max());
+    }
+
+    // Значения до 2 * SUB_BUCKETS точные, дальше корзина шириной 2^shift
+    private static int index(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    private static long middle(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lower = (long) (index - shift * SUB_BUCKETS) << shift;
+        return lower + (1L << shift) / 2;
+    }
+
+    // Неизменяемый срез; в JMX превращается в CompositeData
+    public static class Snapshot {
+        private final long count;
+        private final double mean;
+        private final long p50;
+        private final long p99;
+        private final long p999;
+        private final long max;
+
+        @ConstructorParameters({"count", "mean", "p50", "p99", "p999", "max"})
+        public Snapshot(long count, double mean, long p50, long p99, long p999, long max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.p999 = p999;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getP999() {
+            return p999;
+        }
+
+        public long getMax() {
+            return max;
+        }
+    }
+}
@@ -0,0 +1,624 @@
+package ru.itis.sockets.app.withSwing.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Сегментированный append-only журнал комнат поверх MappedByteBuffer.
+// Селекторы только кладут записи в очередь, в файлы пишет отдельный поток.
+//
+// Запись: [i32 length][u8 kind][данные], length = 0 — конец записанной части сегмента.
+// Рядом с каждым сегментом лежит разреженный индекс: создание и удаление комнат
+// и каждое INDEX_INTERVAL-е сообщение комнаты. Новый сегмент начинается со снимка
+// живых комнат, поэтому при старте читается индекс последнего сегмента и хвост
+// журнала после него, а старые сегменты — только если не хватает истории
+public class MessageLog implements Closeable {
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    public static final int DEFAULT_MAX_SEGMENTS = 8;
+    private static final int MIN_SEGMENT_SIZE = 256 * 1024;
+    private static final int INDEX_INTERVAL = 16;
+    private static final int INDEX_ENTRY_SIZE = 16;
+    private static final int QUEUE_CAPACITY = 8192;
+    private static final long FORCE_INTERVAL_MS = 1000;
+    // Имя сегмента — смещение его первой записи, %020d.log
+    private static final Pattern SEGMENT_NAME = Pattern.compile("(\\d{20})\\.log");
+
+    private static final byte ROOM_CREATED = 1;
+    private static final byte ROOM_REMOVED = 2;
+    private static final byte MESSAGE = 3;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    // Сообщения об ошибках и потерянных записях, вызывается из потока записи
+    private final Consumer<String> errors;
+
+    private final BlockingQueue<Record> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicLong dropped = new AtomicLong();
+    private long reportedDrops;
+    private volatile boolean running;
+    private Thread writerThread;
+
+    // Состояние ниже принадлежит потоку записи (до start() — потоку восстановления)
+    private final TreeMap<Long, Path> segments = new TreeMap<>();
+    private final Map<String, RoomInfo> liveRooms = new LinkedHashMap<>();
+    private final Map<String, Integer> messagesInSegment = new HashMap<>();
+    private final ByteBuffer indexBuffer = ByteBuffer.allocate(INDEX_ENTRY_SIZE * 1024);
+    private long base;
+    private FileChannel channel;
+    private MappedByteBuffer map;
+    private FileChannel indexChannel;
+    private boolean dirty;
+    private long lastForce;
+
+    public MessageLog(Path directory, int segmentSize, int maxSegments, Consumer<String> errors) {
+        if (segmentSize < MIN_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Segment size is too small: " + segmentSize);
+        }
+        if (maxSegments < 1) {
+            throw new IllegalArgumentException("At least one segment must be kept: " + maxSegments);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        this.errors = errors;
+    }
+
+    // Поднимает комнаты и их последние сообщения и открывает последний сегмент на дозапись
+    public List<RecoveredRoom> recover() throws IOException {
+        Files.createDirectories(directory);
+        segments.clear();
+        liveRooms.clear();
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                // Чужие и переименованные файлы в каталоге не должны мешать запуску
+                Matcher segment = SEGMENT_NAME.matcher(name);
+                if (!segment.matches()) {
+                    errors.accept("Message log: skipping " + name + ", not a segment file");
+                    continue;
+                }
+                segments.put(Long.parseLong(segment.group(1)), file);
+            }
+        }
+
+        if (segments.isEmpty()) {
+            openSegment(0, 0);
+            return new ArrayList<>();
+        }
+
+        long newest = segments.lastKey();
+        openSegment(newest, -1);
+
+        List<IndexEntry> index = readIndex(newest);
+        int position = index.isEmpty() ? 0 : (int) index.get(index.size() - 1).position;
+        position = indexTail(index, position);
+        map.position(position);
+
+        for (IndexEntry entry : index) {
+            if (entry.kind == ROOM_CREATED) {
+                ByteBuffer record = record(map, (int) entry.position);
+                boolean persistent = record.get() != 0;
+                int historySize = record.getInt();
+                String room = getString(record);
+                liveRooms.put(room, new RoomInfo(persistent, historySize));
+            } else if (entry.kind == ROOM_REMOVED) {
+                liveRooms.remove(getString(record(map, (int) entry.position)));
+            }
+        }
+
+        return recoverHistory(index);
+    }
+
+    public void start() {
+        running = true;
+        lastForce = System.currentTimeMillis();
+        writerThread = new Thread(this::runWriter, "chat-message-log");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    public boolean appendRoomCreated(String room, boolean persistent, int historySize) {
+        return offer(new Record(ROOM_CREATED, room, persistent, historySize, null, 0, null));
+    }
+
+    public boolean appendRoomRemoved(String room) {
+        return offer(new Record(ROOM_REMOVED, room, false, 0, null, 0, null));
+    }
+
+    public boolean appendMessage(String room, String sender, long timestamp, String text) {
+        return offer(new Record(MESSAGE, room, false, 0, sender, timestamp, text));
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    // Дописывает очередь, сбрасывает сегмент на диск и закрывает файлы
+    @Override
+    public void close() throws IOException {
+        running = false;
+        if (writerThread != null) {
+            try {
+                writerThread.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            writerThread = null;
+        }
+        closeSegment();
+    }
+
+    private boolean offer(Record record) {
+        if (!running || !queue.offer(record)) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private void runWriter() {
+        List<Record> batch = new ArrayList<>();
+
+        while (running || !queue.isEmpty()) {
+            try {
+                Record first = queue.poll(FORCE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch);
+                    writeBatch(batch);
+                }
+
+                long now = System.currentTimeMillis();
+                if (dirty && now - lastForce >= FORCE_INTERVAL_MS) {
+                    dirty = false;
+                    lastForce = now;
+                    map.force();
+                }
+            } catch (RuntimeException e) {
+                // Журнал не должен ронять сервер: сообщаем и продолжаем
+                errors.accept("Message log sync failed: " + e.getMessage());
+            } catch (InterruptedException e) {
+                return;
+            }
+            reportDrops();
+        }
+        reportDrops();
+    }
+
+    // Если запись не удалась, теряется остаток пачки, и каждая потерянная запись учитывается
+    private void writeBatch(List<Record> batch) {
+        int written = 0;
+        try {
+            for (Record record : batch) {
+                write(record);
+                written++;
+            }
+            flushIndex();
+        } catch (IOException | RuntimeException e) {
+            dropped.addAndGet(batch.size() - written);
+            errors.accept("Message log write failed: " + e.getMessage());
+        } finally {
+            batch.clear();
+        }
+    }
+
+    private void reportDrops() {
+        long drops = dropped.get();
+        if (drops > reportedDrops) {
+            errors.accept("Message log: " + (drops - reportedDrops) + " records lost");
+            reportedDrops = drops;
+        }
+    }
+
+    private void write(Record record) throws IOException {
+        byte[] room = record.room.getBytes(StandardCharsets.UTF_8);
+        byte[] sender = record.sender != null ? record.sender.getBytes(StandardCharsets.UTF_8) : null;
+        byte[] text = record.text != null ? record.text.getBytes(StandardCharsets.UTF_8) : null;
+
+        int length = 1 + 2 + room.length;
+        if (record.kind == ROOM_CREATED) {
+            length += 5;
+        } else if (record.kind == MESSAGE) {
+            length += 8 + 2 + sender.length + 2 + text.length;
+        }
+
+        if (map.position() + 4 + length + 4 > segmentSize) {
+            roll();
+        }
+
+        int position = map.position();
+        map.position(position + 4);
+        map.put(record.kind);
+        if (record.kind == ROOM_CREATED) {
+            map.put((byte) (record.persistent ? 1 : 0));
+            map.putInt(record.historySize);
+            putString(map, room);
+        } else if (record.kind == ROOM_REMOVED) {
+            putString(map, room);
+        } else {
+            map.putLong(record.timestamp);
+            putString(map, room);
+            putString(map, sender);
+            putString(map, text);
+        }
+        // Длина пишется последней: недописанная запись выглядит как конец журнала
+        map.putInt(position, length);
+        dirty = true;
+
+        track(record.kind, record.room, record.persistent, record.historySize, position);
+    }
+
+    private void track(byte kind, String room, boolean persistent, int historySize, int position) throws IOException {
+        if (kind == ROOM_CREATED) {
+            liveRooms.put(room, new RoomInfo(persistent, historySize));
+            index(position, room, kind);
+        } else if (kind == ROOM_REMOVED) {
+            liveRooms.remove(room);
+            messagesInSegment.remove(room);
+            index(position, room, kind);
+        } else {
+            int count = messagesInSegment.merge(room, 1, Integer::sum);
+            if ((count - 1) % INDEX_INTERVAL == 0) {
+                index(position, room, kind);
+            }
+        }
+    }
+
+    private void index(int position, String room, byte kind) throws IOException {
+        if (!indexBuffer.hasRemaining()) {
+            flushIndex();
+        }
+        indexBuffer.putLong(position);
+        indexBuffer.putInt(room.hashCode());
+        indexBuffer.putInt(kind);
+    }
+
+    private void flushIndex() throws IOException {
+        indexBuffer.flip();
+        while (indexBuffer.hasRemaining()) {
+            indexChannel.write(indexBuffer);
+        }
+        indexBuffer.clear();
+    }
+
+    // Новый сегмент продолжает логическое смещение и начинается со снимка живых комнат
+    private void roll() throws IOException {
+        long next = base + map.position();
+        flushIndex();
+        closeSegment();
+
+        openSegment(next, 0);
+        messagesInSegment.clear();
+        for (Map.Entry<String, RoomInfo> room : new ArrayList<>(liveRooms.entrySet())) {
+            write(new Record(ROOM_CREATED, room.getKey(), room.getValue().persistent,
+                    room.getValue().historySize, null, 0, null));
+        }
+
+        while (segments.size() > maxSegments) {
+            Map.Entry<Long, Path> oldest = segments.pollFirstEntry();
+            Files.deleteIfExists(oldest.getValue());
+            Files.deleteIfExists(indexPath(oldest.getKey()));
+        }
+    }
+
+    private void openSegment(long segmentBase, int position) throws IOException {
+        Path path = directory.resolve(String.format("%020d.log", segmentBase));
+        segments.put(segmentBase, path);
+
+        base = segmentBase;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        indexChannel = FileChannel.open(indexPath(segmentBase), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (position >= 0) {
+            map.position(position);
+        }
+    }
+
+    private void closeSegment() throws IOException {
+        if (channel == null) return;
+
+        flushIndex();
+        map.force();
+        dirty = false;
+        indexChannel.close();
+        channel.close();
+        channel = null;
+    }
+
+    private Path indexPath(long segmentBase) {
+        return directory.resolve(String.format("%020d.index", segmentBase));
+    }
+
+    private List<IndexEntry> readIndex(long segmentBase) throws IOException {
+        List<IndexEntry> entries = new ArrayList<>();
+        Path path = indexPath(segmentBase);
+        if (!Files.exists(path)) return entries;
+
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        while (buffer.remaining() >= INDEX_ENTRY_SIZE) {
+            entries.add(new IndexEntry(buffer.getLong(), buffer.getInt(), (byte) buffer.getInt()));
+        }
+        return entries;
+    }
+
+    // Записи после последней записи индекса могли не попасть в индекс до остановки:
+    // проходим хвост, дописываем индекс и возвращаем позицию конца журнала
+    private int indexTail(List<IndexEntry> index, int from) throws IOException {
+        int position = from;
+        if (!index.isEmpty()) {
+            position = next(map, position);
+        }
+
+        while (position >= 0 && position + 4 <= segmentSize) {
+            ByteBuffer record = record(map, position);
+            if (record == null) break;
+
+            byte kind = map.get(position + 4);
+            String room;
+            if (kind == ROOM_CREATED) {
+                record.get();
+                record.getInt();
+                room = getString(record);
+            } else if (kind == MESSAGE) {
+                record.getLong();
+                room = getString(record);
+            } else {
+                room = getString(record);
+            }
+
+            // В хвосте индексируется каждое сообщение: счётчики комнат до остановки неизвестны
+            IndexEntry entry = new IndexEntry(position, room.hashCode(), kind);
+            index.add(entry);
+            indexBuffer.putLong(position).putInt(room.hashCode()).putInt(kind);
+            if (!indexBuffer.hasRemaining()) {
+                flushIndex();
+            }
+            if (kind == MESSAGE) {
+                messagesInSegment.merge(room, 1, Integer::sum);
+            }
+            position = next(map, position);
+        }
+        flushIndex();
+
+        return Math.max(position, 0);
+    }
+
+    private List<RecoveredRoom> recoverHistory(List<IndexEntry> newestIndex) throws IOException {
+        Map<String, Deque<RecoveredMessage>> history = new HashMap<>();
+        Map<String, Integer> missing = new HashMap<>();
+        for (Map.Entry<String, RoomInfo> room : liveRooms.entrySet()) {
+            history.put(room.getKey(), new ArrayDeque<>());
+            missing.put(room.getKey(), room.getValue().historySize);
+        }
+
+        // От новых сегментов к старым, пока каким-то комнатам не хватает сообщений
+        for (long segmentBase : segments.descendingKeySet()) {
+            if (missing.isEmpty()) break;
+
+            if (segmentBase == base) {
+                readHistory(map, newestIndex, history, missing);
+            } else {
+                try (FileChannel old = FileChannel.open(segments.get(segmentBase), StandardOpenOption.READ)) {
+                    MappedByteBuffer oldMap = old.map(FileChannel.MapMode.READ_ONLY, 0, old.size());
+                    readHistory(oldMap, readIndex(segmentBase), history, missing);
+                }
+            }
+        }
+
+        List<RecoveredRoom> rooms = new ArrayList<>();
+        for (Map.Entry<String, RoomInfo> room : liveRooms.entrySet()) {
+            rooms.add(new RecoveredRoom(room.getKey(), room.getValue().persistent,
+                    room.getValue().historySize, new ArrayList<>(history.get(room.getKey()))));
+        }
+        return rooms;
+    }
+
+    // По индексу выбирает для каждой комнаты точку, после которой лежит не меньше
+    // нужного числа её сообщений, и один раз проходит сегмент от самой ранней точки
+    private void readHistory(ByteBuffer segment, List<IndexEntry> index,
+                             Map<String, Deque<RecoveredMessage>> history,
+                             Map<String, Integer> missing) {
+        Map<Integer, List<Long>> positions = new HashMap<>();
+        for (IndexEntry entry : index) {
+            if (entry.kind == MESSAGE) {
+                positions.computeIfAbsent(entry.roomHash, hash -> new ArrayList<>()).add(entry.position);
+            }
+        }
+
+        Map<String, Long> starts = new HashMap<>();
+        for (Map.Entry<String, Integer> room : missing.entrySet()) {
+            List<Long> roomPositions = positions.get(room.getKey().hashCode());
+            if (roomPositions == null) continue;
+
+            int back = (room.getValue() + INDEX_INTERVAL - 1) / INDEX_INTERVAL + 1;
+            starts.put(room.getKey(), roomPositions.get(Math.max(0, roomPositions.size() - back)));
+        }
+
+        Map<String, Deque<RecoveredMessage>> found = scan(segment, starts, missing);
+
+        for (Map.Entry<String, Deque<RecoveredMessage>> room : found.entrySet()) {
+            String name = room.getKey();
+            Deque<RecoveredMessage> messages = room.getValue();
+            int need = missing.get(name);
+
+            // Хвостовая часть индекса плотнее обычной: если не хватило, читаем комнату с начала сегмента
+            long first = positions.get(name.hashCode()).get(0);
+            if (messages.size() < need && starts.get(name) > first) {
+                messages = scan(segment, Map.of(name, first), missing).getOrDefault(name, messages);
+            }
+
+            Deque<RecoveredMessage> target = history.get(name);
+            Iterator<RecoveredMessage> newestFirst = messages.descendingIterator();
+            while (newestFirst.hasNext() && need > 0) {
+                target.addFirst(newestFirst.next());
+                need--;
+            }
+            missing.put(name, need);
+        }
+
+        missing.values().removeIf(need -> need <= 0);
+        // Комнате, созданной в этом сегменте, старые сегменты ничего не добавят
+        missing.keySet().removeIf(room -> createdIn(segment, index, room));
+    }
+
+    private Map<String, Deque<RecoveredMessage>> scan(ByteBuffer segment, Map<String, Long> starts,
+                                                      Map<String, Integer> missing) {
+        Map<String, Deque<RecoveredMessage>> found = new HashMap<>();
+        if (starts.isEmpty()) return found;
+
+        int position = (int) (long) Collections.min(starts.values());
+        while (position >= 0) {
+            ByteBuffer record = record(segment, position);
+            if (record == null) break;
+
+            if (segment.get(position + 4) == MESSAGE) {
+                long timestamp = record.getLong();
+                String room = getString(record);
+                Long start = starts.get(room);
+                if (start != null && position >= start) {
+                    Deque<RecoveredMessage> messages = found.computeIfAbsent(room, name -> new ArrayDeque<>());
+                    messages.addLast(new RecoveredMessage(getString(record), timestamp, getString(record)));
+                    if (messages.size() > missing.get(room)) {
+                        messages.removeFirst();
+                    }
+                }
+            }
+            position = next(segment, position);
+        }
+        return found;
+    }
+
+    private boolean createdIn(ByteBuffer segment, List<IndexEntry> index, String room) {
+        for (IndexEntry entry : index) {
+            if (entry.kind == ROOM_CREATED && entry.roomHash == room.hashCode()) {
+                ByteBuffer record = record(segment, (int) entry.position);
+                record.get();
+                record.getInt();
+                // Снимок в начале сегмента не означает, что комната создана здесь
+                if (room.equals(getString(record)) && !isSnapshot(index, entry)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean isSnapshot(List<IndexEntry> index, IndexEntry created) {
+        for (IndexEntry entry : index) {
+            if (entry == created) return true;
+            if (entry.kind != ROOM_CREATED) return false;
+        }
+        return false;
+    }
+
+    // Данные записи (после kind) или null, если по этой позиции записи нет
+    private static ByteBuffer record(ByteBuffer segment, int position) {
+        if (position + 5 > segment.limit()) return null;
+        int length = segment.getInt(position);
+        if (length <= 0 || position + 4 + length > segment.limit()) return null;
+
+        return segment.duplicate().limit(position + 4 + length).position(position + 5);
+    }
+
+    private static int next(ByteBuffer segment, int position) {
+        if (record(segment, position) == null) return position;
+        return position + 4 + segment.getInt(position);
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] value) {
+        buffer.putShort((short) value.length);
+        buffer.put(value);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        byte[] data = new byte[length];
+        buffer.get(data);
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+    public static class RecoveredRoom {
+        public final String name;
+        public final boolean persistent;
+        public final int historySize;
+        public final List<RecoveredMessage> history;
+
+        RecoveredRoom(String name, boolean persistent, int historySize, List<RecoveredMessage> history) {
+            this.name = name;
+            this.persistent = persistent;
+            this.historySize = historySize;
+            this.history = history;
+        }
+    }
+
+    public static class RecoveredMessage {
+        public final String sender;
+        public final long timestamp;
+        public final String text;
+
+        RecoveredMessage(String sender, long timestamp, String text) {
+            this.sender = sender;
+            this.timestamp = timestamp;
+            this.text = text;
+        }
+    }
+
+    private static class RoomInfo {
+        final boolean persistent;
+        final int historySize;
+
+        RoomInfo(boolean persistent, int historySize) {
+            this.persistent = persistent;
+            this.historySize = historySize;
+        }
+    }
+
+    private static class IndexEntry {
+        final long position;
+        final int roomHash;
+        final byte kind;
+
+        IndexEntry(long position, int roomHash, byte kind) {
+            this.position = position;
+            this.roomHash = roomHash;
+            this.kind = kind;
+        }
+    }
+
+    private static class Record {
+        final byte kind;
+        final String room;
+        final boolean persistent;
+        final int historySize;
+        final String sender;
+        final long timestamp;
+        final String text;
+
+        Record(byte kind, String room, boolean persistent, int historySize,
+               String sender, long timestamp, String text) {
+            this.kind = kind;
+            this.room = room;
+            this.persistent = persistent;
+            this.historySize = historySize;
+            this.sender = sender;
+            this.timestamp = timestamp;
+            this.text = text;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package ru.itis.sockets.app.withSwing.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+
+// Исходящая очередь одного соединения. Используется только потоком-владельцем,
+// поэтому синхронизация не нужна. Выше highWatermark клиент считается медленным
+// до тех пор, пока очередь не опустится до lowWatermark.
+// Очередь забирает ссылку на каждый переданный ей кадр и освобождает его,
+// когда кадр записан целиком или отброшен
+public class OutboundQueue {
+    private static final int MAX_GATHER = 64;
+
+    public enum Policy {
+        DROP,
+        DISCONNECT
+    }
+
+    public enum Result {
+        QUEUED,
+        DROPPED,
+        OVERFLOW
+    }
+
+    private final int highWatermark;
+    private final int lowWatermark;
+    private final Policy policy;
+
+    private final ArrayDeque<SharedFrame> frames = new ArrayDeque<>();
+    private final ArrayDeque<ByteBuffer> views = new ArrayDeque<>();
+    private final ByteBuffer[] gather;
+    private long pendingBytes;
+    private boolean slow;
+    private long droppedFrames;
+
+    public OutboundQueue(int highWatermark, int lowWatermark, Policy policy) {
+        this(highWatermark, lowWatermark, policy, new ByteBuffer[MAX_GATHER]);
+    }
+
+    // gather можно разделить между очередями одного потока: он нужен только внутри flush
+    public OutboundQueue(int highWatermark, int lowWatermark, Policy policy, ByteBuffer[] gather) {
+        if (lowWatermark < 0 || lowWatermark > highWatermark) {
+            throw new IllegalArgumentException(
+                    "Invalid watermarks: low=" + lowWatermark + ", high=" + highWatermark);
+        }
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        this.policy = policy;
+        this.gather = gather;
+    }
+
+    public Result offer(SharedFrame frame) {
+        if (slow || pendingBytes + frame.size() > highWatermark) {
+            slow = true;
+            frame.release();
+            if (policy == Policy.DISCONNECT) {
+                return Result.OVERFLOW;
+            }
+            droppedFrames++;
+            return Result.DROPPED;
+        }
+
+        append(frame, frame.view());
+        return Result.QUEUED;
+    }
+
+    // Служебные кадры (например, причина отключения) ставятся в очередь в обход лимитов
+    public void force(SharedFrame frame) {
+        append(frame, frame.view());
+    }
+
+    // Пишет столько, сколько примет сокет. true — очередь опустела
+    public boolean flush(GatheringByteChannel channel) throws IOException {
+        while (!views.isEmpty()) {
+            int count = 0;
+            for (ByteBuffer view : views) {
+                gather[count++] = view;
+                if (count == gather.length) break;
+            }
+
+            long written;
+            try {
+                written = channel.write(gather, 0, count);
+            } finally {
+                for (int i = 0; i < count; i++) {
+                    gather[i] = null;
+                }
+            }
+            pendingBytes -= written;
+
+            while (!views.isEmpty() && !views.peekFirst().hasRemaining()) {
+                views.pollFirst();
+                frames.pollFirst().release();
+            }
+
+            if (written == 0 || !views.isEmpty() && views.peekFirst().position() > 0) {
+                break;
+            }
+        }
+
+        if (slow && pendingBytes <= lowWatermark) {
+            slow = false;
+        }
+        return frames.isEmpty();
+    }
+
+    // Отбрасывает всё, кроме начатого кадра: его обрыв испортил бы поток
+    public void truncate() {
+        ByteBuffer head = views.peekFirst();
+        SharedFrame headFrame = frames.peekFirst();
+        boolean keepHead = head != null && head.position() > 0;
+
+        if (keepHead) {
+            views.pollFirst();
+            frames.pollFirst();
+        }
+        clear();
+        if (keepHead) {
+            append(headFrame, head);
+        }
+    }
+
+    public void clear() {
+        SharedFrame frame;
+        while ((frame = frames.pollFirst()) != null) {
+            frame.release();
+        }
+        views.clear();
+        pendingBytes = 0;
+    }
+
+    public boolean isEmpty() {
+        return frames.isEmpty();
+    }
+
+    public boolean isSlow() {
+        return slow;
+    }
+
+    // Сколько ещё можно поставить в очередь, не став медленным
+    public long available() {
+        return slow ? 0 : Math.max(0, highWatermark - pendingBytes);
+    }
+
+    public long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    private void append(SharedFrame frame, ByteBuffer view) {
+        frames.addLast(frame);
+        views.addLast(view);
+        pendingBytes += view.remaining();
+    }
+}
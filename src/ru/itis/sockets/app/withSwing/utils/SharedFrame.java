@@ -0,0 +1,63 @@
+package ru.itis.sockets.app.withSwing.utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Один раз закодированный кадр, который раздаётся нескольким получателям.
+// Каждый держатель ссылки обязан вызвать release(); последний возвращает буфер в пул
+public final class SharedFrame {
+    private final FramePool pool;
+    private final ByteBuffer buffer;
+    private final AtomicInteger refCount = new AtomicInteger();
+
+    SharedFrame(FramePool pool, ByteBuffer buffer) {
+        this.pool = pool;
+        this.buffer = buffer;
+    }
+
+    // Буфер для записи кадра, доступен только до первой раздачи
+    ByteBuffer prepare() {
+        refCount.set(1);
+        buffer.clear();
+        return buffer;
+    }
+
+    // Запись кадра, выделенного через FramePool.allocate
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public SharedFrame seal() {
+        buffer.flip();
+        return this;
+    }
+
+    public SharedFrame retain() {
+        if (refCount.getAndIncrement() <= 0) {
+            throw new IllegalStateException("Frame already released");
+        }
+        return this;
+    }
+
+    public void release() {
+        int refs = refCount.decrementAndGet();
+        if (refs == 0) {
+            pool.recycle(this);
+        } else if (refs < 0) {
+            throw new IllegalStateException("Frame released too many times");
+        }
+    }
+
+    // Независимое read-only представление: позиция у каждого получателя своя
+    public ByteBuffer view() {
+        return buffer.asReadOnlyBuffer();
+    }
+
+    public int size() {
+        return buffer.limit();
+    }
+
+    int capacity() {
+        return buffer.capacity();
+    }
+}
@@ -0,0 +1,140 @@
+package ru.itis.sockets.app.withSwing.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Хешированное колесо таймеров для одного потока (воркера). Таймер — узел двусвязного списка
+// в ячейке deadline % buckets, поэтому постановка, перестановка и отмена стоят O(1)
+// и не создают объектов. advance() вызывается из цикла селектора и за каждый прошедший тик
+// обходит одну ячейку; таймеры дальше одного оборота остаются в ней до своего тика
+public class TimingWheel {
+
+    public static class Timeout {
+        private final Runnable task;
+        private Timeout prev;
+        private Timeout next;
+        private long deadline;
+        private int bucket = -1;
+
+        public Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        public boolean isScheduled() {
+            return bucket >= 0;
+        }
+    }
+
+    private final long tickNanos;
+    private final long tickMillis;
+    private final Timeout[] buckets;
+    private final int mask;
+    private final long startNanos;
+    // Сработавшие за advance(); отдельный список, потому что next у узла занимают ячейки
+    private final List<Timeout> expired = new ArrayList<>();
+    private long currentTick;
+    private int size;
+
+    public TimingWheel(long tickMillis, int bucketCount) {
+        if (tickMillis < 1) {
+            throw new IllegalArgumentException("Tick must be positive: " + tickMillis);
+        }
+        if (Integer.bitCount(bucketCount) != 1) {
+            throw new IllegalArgumentException("Bucket count must be a power of two: " + bucketCount);
+        }
+
+        this.tickMillis = tickMillis;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.buckets = new Timeout[bucketCount];
+        this.mask = bucketCount - 1;
+        this.startNanos = System.nanoTime();
+    }
+
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // Уже стоящий таймер переставляется на новый срок. Срок округляется вверх до тика
+    public void schedule(Timeout timeout, long delayMillis) {
+        if (timeout.isScheduled()) {
+            unlink(timeout);
+        }
+
+        long at = System.nanoTime() - startNanos + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        timeout.deadline = Math.max(currentTick + 1, (at + tickNanos - 1) / tickNanos);
+        int bucket = (int) timeout.deadline & mask;
+        timeout.bucket = bucket;
+        timeout.prev = null;
+        timeout.next = buckets[bucket];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        buckets[bucket] = timeout;
+        size++;
+    }
+
+    public void cancel(Timeout timeout) {
+        if (timeout.isScheduled()) {
+            unlink(timeout);
+        }
+    }
+
+    // Запускает наступившие таймеры и возвращает их число. Задача может ставить и отменять
+    // любые таймеры: сработавшие сначала снимаются со своих ячеек в отдельный список, потом
+    // запускаются, поэтому перестановка ещё не запущенного таймера не портит обход
+    public int advance() {
+        long nowTick = (System.nanoTime() - startNanos) / tickNanos;
+        if (nowTick <= currentTick) return 0;
+
+        // После долгого простоя достаточно одного оборота: каждая ячейка обходится один раз
+        long from = Math.max(currentTick + 1, nowTick - mask);
+        currentTick = nowTick;
+
+        for (long tick = from; tick <= nowTick; tick++) {
+            Timeout timeout = buckets[(int) tick & mask];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.deadline <= nowTick) {
+                    unlink(timeout);
+                    expired.add(timeout);
+                }
+                timeout = next;
+            }
+        }
+
+        int fired = 0;
+        try {
+            for (int i = 0; i < expired.size(); i++) {
+                Timeout timeout = expired.get(i);
+                // Задача могла уже поставить этот таймер заново из другого сработавшего
+                if (!timeout.isScheduled()) {
+                    fired++;
+                    timeout.task.run();
+                }
+            }
+        } finally {
+            expired.clear();
+        }
+        return fired;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+        size--;
+    }
+}
@@ -0,0 +1,46 @@
+package ru.itis.sockets.app.withSwing.utils;
+
+import java.util.concurrent.TimeUnit;
+
+// Ведро токенов одного соединения: rate токенов в секунду, в запасе не больше burst.
+// Время передаёт вызывающий (System.nanoTime()), проверка — несколько арифметических
+// операций без выделения памяти. Не потокобезопасно: ведро принадлежит потоку воркера
+public class TokenBucket {
+    private final double tokensPerNano;
+    private final double burst;
+    private double tokens;
+    private long refilledAt;
+
+    public TokenBucket(double ratePerSecond, int burst, long now) {
+        if (ratePerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Rate and burst must be positive: " + ratePerSecond + ", " + burst);
+        }
+
+        this.tokensPerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burst = burst;
+        this.tokens = burst;
+        this.refilledAt = now;
+    }
+
+    public boolean tryTake(long now) {
+        refill(now);
+        if (tokens < 1) return false;
+
+        tokens -= 1;
+        return true;
+    }
+
+    // Через сколько наносекунд в ведре появится целый токен
+    public long nanosUntilToken(long now) {
+        refill(now);
+        return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / tokensPerNano);
+    }
+
+    private void refill(long now) {
+        long elapsed = now - refilledAt;
+        if (elapsed <= 0) return;
+
+        tokens = Math.min(burst, tokens + elapsed * tokensPerNano);
+        refilledAt = now;
+    }
+}